@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.auth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the endpoint catalog against assembling the URL on each request.
+ * Run it with {@code ./gradlew :benchmark:jmh -Pjmh=OpenppEndpoints}.
+ *
+ * @author shiroko@webware.co.jp
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OpenppEndpointsBenchmark {
+    // Not constants, so that the concatenation is not folded at compile time.
+    private String mAuthServerName;
+    private String mResourceServerName;
+    private OpenppEndpoints mEndpoints;
+
+    @Setup
+    public void setUp() {
+        mAuthServerName = "auth.example.com";
+        mResourceServerName = "api.example.com";
+        mEndpoints = new OpenppEndpoints(mAuthServerName, mResourceServerName);
+    }
+
+    @Benchmark
+    public String catalog() {
+        return mEndpoints.getAccessTokenUrlWithGrantType();
+    }
+
+    @Benchmark
+    public String concatenated() {
+        return OpenppAuthManager.SCHEME + "://" + mAuthServerName + OpenppEndpoints.ACCESS_TOKEN_PATH
+                + "?" + OpenppEndpoints.GRANT_TYPE_PARAM;
+    }
+
+    @Benchmark
+    public OpenppEndpoints build() {
+        return new OpenppEndpoints(mAuthServerName, mResourceServerName);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.auth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of assembling the body of the registration request, before it is signed.
+ * The parameters are those the push manager sends, with the device attributes changed since the last upload.
+ * Run it with {@code ./gradlew :benchmark:jmh -Pjmh=OpenppRegistrationBody}.
+ *
+ * @author shiroko@webware.co.jp
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OpenppRegistrationBodyBenchmark {
+    private static final String URL = "https://api.example.com/api/push/device/android/register";
+
+    // Number of the changed attributes; 64 makes the body large enough to be compressed.
+    @Param({"0", "64"})
+    public int mAttributes;
+
+    @Param({"false", "true"})
+    public boolean mCompression;
+
+    private HashMap<String, String> mBodyParam;
+
+    @Setup
+    public void setUp() {
+        mBodyParam = new HashMap<>();
+        mBodyParam.put("application_name", "net.openpp.android.sample");
+        mBodyParam.put("device_identifier", "38400000-8cf0-11bd-b23e-10b96e40000d");
+        mBodyParam.put("limit_ad_tracking", "0");
+        mBodyParam.put("registration_id", "APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx"
+                + "GsAcXuwymtH0A5pXr4xAsh5qNtsPwzz9G_hzPJxPvL4UEA6tuMfgDbpSE7Uay5");
+        mBodyParam.put("uid", "1234567");
+        mBodyParam.put("topics", "news,sports,weather");
+        for (int i = 0; i < mAttributes; i++) {
+            mBodyParam.put("attributes[key" + i + "]", "value " + i);
+        }
+    }
+
+    @Benchmark
+    public String assemble() throws IOException {
+        OAuthRequest request = OpenppAuthManager.buildRequest(Verb.POST, URL, mBodyParam, null, null, mCompression);
+        // The form body is encoded when it is sent, unless the compression has done it already.
+        return request.getBodyContents();
+    }
+}
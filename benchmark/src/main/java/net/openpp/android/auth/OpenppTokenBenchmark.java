@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.auth;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.scribe.extractors.AccessTokenExtractor;
+import org.scribe.model.Token;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of reading the token response, which is done on every authorization and refresh.
+ * Run it with {@code ./gradlew :benchmark:jmh -Pjmh=OpenppToken}.
+ *
+ * @author shiroko@webware.co.jp
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OpenppTokenBenchmark {
+    private String mResponse;
+    private AccessTokenExtractor mExtractor;
+    private Token mToken;
+
+    @Setup
+    public void setUp() {
+        mResponse = "{\"access_token\":\"NzE4ZDQ2ZjY3YjA5MDE0ZTU2OTI0ZjdkNDE1NjQ4MjgzZTJiNWU4YjA0ZmQ5MjA4\","
+                + "\"expires_in\":3600,\"token_type\":\"bearer\",\"scope\":null,"
+                + "\"refresh_token\":\"MDFmYWRiNzgxYjk1YTY1OTQ0Y2FlOWUxODZmNjNlM2Q0YjQwNWQ3ZmY4N2IyYzQ2\"}";
+        mExtractor = new OpenppOAuthApi().getAccessTokenExtractor();
+        mToken = mExtractor.extract(mResponse);
+    }
+
+    @Benchmark
+    public Token extractAccessToken() {
+        return mExtractor.extract(mResponse);
+    }
+
+    @Benchmark
+    public String extractRefreshToken() {
+        return OpenppAuthManager.extractRefreshToken(mToken);
+    }
+}
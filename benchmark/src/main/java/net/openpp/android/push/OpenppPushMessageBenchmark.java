@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.push;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * JMH benchmark of the compact payload decoding, without the base64 step;
+ * Android's base64 stream relies on the framework's own System.arraycopy() and does not run on the JVM.
+ * The baseline reads the same message from flat string extras, which are kept in a map as the Bundle
+ * does not run on the JVM either.
+ * Run it with {@code ./gradlew :benchmark:jmh -Pjmh=OpenppPushMessage}.
+ *
+ * @author shiroko@webware.co.jp
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OpenppPushMessageBenchmark {
+    // Number of the entries in the data object, to see how the decoding scales with the size.
+    @Param({"1", "32"})
+    public int mDataSize;
+
+    private byte[] mDeflated;
+    private Map<String, String> mExtras;
+
+    @Setup
+    public void setUp() throws IOException {
+        mExtras = new LinkedHashMap<>();
+        mExtras.put(OpenppPushMessage.EXTRA_TITLE, "Title");
+        mExtras.put(OpenppPushMessage.EXTRA_MESSAGE, "Hello");
+        mExtras.put(OpenppPushMessage.EXTRA_TOPIC, "news");
+        for (int i = 0; i < mDataSize; i++) {
+            mExtras.put("key" + i, "http://example.com/content/" + i);
+        }
+        StringBuilder json = new StringBuilder("{\"title\":\"Title\",\"message\":\"Hello\",\"data\":{");
+        for (int i = 0; i < mDataSize; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("\"key").append(i).append("\":\"http://example.com/content/").append(i).append('"');
+        }
+        json.append("}}");
+        mDeflated = deflate(json.toString());
+    }
+
+    @Benchmark
+    public OpenppPushMessage decode() throws IOException {
+        return OpenppPushMessage.decode(new ByteArrayInputStream(mDeflated), "news");
+    }
+
+    @Benchmark
+    public OpenppPushMessage readPlainExtras() {
+        HashMap<String, String> data = new HashMap<>();
+        for (Map.Entry<String, String> extra : mExtras.entrySet()) {
+            String key = extra.getKey();
+            if (!OpenppPushMessage.EXTRA_TITLE.equals(key) && !OpenppPushMessage.EXTRA_MESSAGE.equals(key)
+                    && !OpenppPushMessage.EXTRA_TOPIC.equals(key)) {
+                data.put(key, extra.getValue());
+            }
+        }
+        return new OpenppPushMessage(mExtras.get(OpenppPushMessage.EXTRA_TITLE),
+                mExtras.get(OpenppPushMessage.EXTRA_MESSAGE), mExtras.get(OpenppPushMessage.EXTRA_TOPIC), data);
+    }
+
+    /**
+     * Deflates the JSON with zlib, as the server does.
+     * @param json JSON
+     * @return deflated bytes
+     */
+    private static byte[] deflate(String json) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+        try {
+            out.write(json.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+}
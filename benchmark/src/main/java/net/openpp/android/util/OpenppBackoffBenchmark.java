@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of the retry policy.
+ * Run it with {@code ./gradlew :benchmark:jmh -Pjmh=OpenppBackoff}.
+ *
+ * @author shiroko@webware.co.jp
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OpenppBackoffBenchmark {
+    private static final int MAX_ATTEMPTS = 5;
+
+    private OpenppBackoff mShared;
+    private OpenppBackoff mOwn;
+    private int mAttempt;
+
+    @Setup
+    public void setUp() {
+        // The SDK's policies share one Random, as created by the public constructor.
+        mShared = new OpenppBackoff(MAX_ATTEMPTS, OpenppBackoff.MAX_DELAY_MILLI_SECONDS / 1000);
+        mOwn = new OpenppBackoff(MAX_ATTEMPTS, OpenppBackoff.MAX_DELAY_MILLI_SECONDS / 1000, new Random(1));
+    }
+
+    private int nextAttempt() {
+        mAttempt = mAttempt % MAX_ATTEMPTS + 1;
+        return mAttempt;
+    }
+
+    @Benchmark
+    public long getDelay() {
+        return mShared.getDelay(nextAttempt());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long getDelayContended() {
+        return mShared.getDelay(nextAttempt());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long getDelayOwnRandom() {
+        return mOwn.getDelay(nextAttempt());
+    }
+
+    @Benchmark
+    public boolean canRetry() {
+        return mShared.canRetry(nextAttempt());
+    }
+}
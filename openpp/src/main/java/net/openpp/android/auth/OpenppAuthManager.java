@@ -18,16 +18,32 @@ package net.openpp.android.auth;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.google.gson.Gson;
 
+import net.openpp.android.config.OpenppRemoteConfig;
+import net.openpp.android.job.OpenppJob;
+import net.openpp.android.job.OpenppJobScheduler;
+import net.openpp.android.trace.OpenppSpan;
+import net.openpp.android.trace.OpenppTracer;
+import net.openpp.android.util.OpenppBackoff;
+import net.openpp.android.util.OpenppCompression;
+import net.openpp.android.util.OpenppFlightRecorder;
+import net.openpp.android.util.OpenppNetworkQuality;
+import net.openpp.android.util.OpenppPreferenceStore;
+import net.openpp.android.util.OpenppSharedState;
+import net.openpp.android.util.OpenppWatchdog;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.scribe.builder.ServiceBuilder;
+import org.scribe.exceptions.OAuthConnectionException;
+import org.scribe.exceptions.OAuthException;
 import org.scribe.model.OAuthConstants;
 import org.scribe.model.OAuthRequest;
 import org.scribe.model.Response;
@@ -37,9 +53,12 @@ import org.scribe.model.Verifier;
 import org.scribe.oauth.OAuthService;
 
 import java.io.IOException;
+import java.nio.channels.FileLock;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author shiroko@webware.co.jp
@@ -51,23 +70,29 @@ public class OpenppAuthManager {
     static final String PROPERTY_ACCESS_TOKEN = "accessToken";
     static final String PARAMETER_GRANT_TYPE = "grant_type";
     static final String PARAMETER_REFRESH_TOKEN = "refresh_token";
-    private static final int MAX_ATTEMPTS = 5;
-    private static final int BACKOFF_MILLI_SECONDS = 2000;
-    private static final Random mRandom = new Random();
+    private static final int COMPRESSION_THRESHOLD_BYTES = 1024;
+    private static final String CHARSET_UTF8 = "UTF-8";
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+    private static final String JOB_ACCESS_TOKEN = "auth.accessToken";
+    private static final String JOB_USER_INFO = "auth.userInfo";
+    private static final String JOB_PARAM_CODE = "code";
 
     // Tag used on log messages.
     private static final String TAG = "OpenppAuthManager";
 
     private static final OpenppAuthManager mInstance = new OpenppAuthManager();
-    private OAuthService mService;
-    private Context mContext;
-    private HashMap<String,String> mUserInfo = new HashMap<>();
-
-    private String mAuthServerName;
-    private String mResourceServerName;
-    private String mApiKey;
-    private String mApiSecret;
-    private OpenppAuthListener mListener;
+    // The service with the configuration it was built from.
+    private final AtomicReference<ServiceHolder> mService = new AtomicReference<>();
+    private final AtomicReference<Context> mContext = new AtomicReference<>();
+    private final OpenppUserProfile mUserProfile = new OpenppUserProfile();
+    private final AtomicReference<Config> mConfig = new AtomicReference<>(new Config(null, null, null, null));
+    private volatile OpenppAuthListener mListener;
+    private final OpenppRateLimiter mRateLimiter = new OpenppRateLimiter();
+    private final Object mRefreshLock = new Object();
+    private volatile boolean mRequestCompressionEnabled;
+    private final OpenppOAuthApi mApi = new OpenppOAuthApi();
+    private final Gson mGson = new Gson();
+    private volatile CachedToken mAccessToken;
 
     /**
      * Constructor
@@ -88,7 +113,10 @@ public class OpenppAuthManager {
      * @param apiKey
      */
     public void setApiKey(String apiKey) {
-        mApiKey = apiKey;
+        Config config;
+        do {
+            config = mConfig.get();
+        } while (!mConfig.compareAndSet(config, new Config(config.mAuthServerName, config.mResourceServerName, apiKey, config.mApiSecret)));
     }
 
     /**
@@ -96,7 +124,10 @@ public class OpenppAuthManager {
      * @param apiSecret
      */
     public void setApiSecret(String apiSecret) {
-        mApiSecret = apiSecret;
+        Config config;
+        do {
+            config = mConfig.get();
+        } while (!mConfig.compareAndSet(config, new Config(config.mAuthServerName, config.mResourceServerName, config.mApiKey, apiSecret)));
     }
 
     /**
@@ -104,7 +135,10 @@ public class OpenppAuthManager {
      * @param authServerName
      */
     public void setAuthServerName(String authServerName) {
-        mAuthServerName = authServerName;
+        Config config;
+        do {
+            config = mConfig.get();
+        } while (!mConfig.compareAndSet(config, new Config(authServerName, config.mResourceServerName, config.mApiKey, config.mApiSecret)));
     }
 
     /**
@@ -112,7 +146,7 @@ public class OpenppAuthManager {
      * @return
      */
     public String getAuthServerName() {
-        return mAuthServerName;
+        return mConfig.get().mAuthServerName;
     }
 
     /**
@@ -120,7 +154,10 @@ public class OpenppAuthManager {
      * @param resourceServerName
      */
     public void setResourceServerName(String resourceServerName) {
-        mResourceServerName = resourceServerName;
+        Config config;
+        do {
+            config = mConfig.get();
+        } while (!mConfig.compareAndSet(config, new Config(config.mAuthServerName, resourceServerName, config.mApiKey, config.mApiSecret)));
     }
 
     /**
@@ -128,16 +165,60 @@ public class OpenppAuthManager {
      * @return
      */
     public String getResourceServerName() {
-        return mResourceServerName;
+        return mConfig.get().mResourceServerName;
+    }
+
+    /**
+     * Gets the endpoint URLs of the current server configuration.
+     * @return endpoint catalog
+     */
+    public OpenppEndpoints getEndpoints() {
+        return mConfig.get().mEndpoints;
+    }
+
+    /**
+     * Sets whether the large request bodies are sent compressed with gzip.
+     * Enable this only if the servers accept {@code Content-Encoding: gzip} requests.
+     * @param requestCompressionEnabled true to compress
+     */
+    public void setRequestCompressionEnabled(boolean requestCompressionEnabled) {
+        mRequestCompressionEnabled = requestCompressionEnabled;
+    }
+
+    /**
+     * Gets the rate limiter placed in front of every request the SDK sends.
+     * @return rate limiter
+     */
+    public OpenppRateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * Gets the resource owner's profile, whose fields are fetched on the first access.
+     * @return profile
+     */
+    public OpenppUserProfile getUserProfile() {
+        return mUserProfile;
+    }
+
+    /**
+     * Returns whether the access token has been obtained.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread.
+     * @return true if authorized
+     * @throws IOException if the stored token cannot be read
+     */
+    public boolean hasAccessToken() throws IOException {
+        return null != mContext.get() && null != getStoredAccessToken();
     }
 
     /**
-     * Gets the resource owner's information.
+     * Gets the resource owner's information which has been loaded.
+     * Use {@link #getUserProfile()} to load the other fields.
      * @param key key of resource owner's information
-     * @return value
+     * @return value, or null if not loaded
      */
     public String getUserInfo(String key) {
-        return mUserInfo.get(key);
+        return mUserProfile.getCached(key);
     }
 
     /**
@@ -145,20 +226,63 @@ public class OpenppAuthManager {
      * @param activity activity
      */
     public void auth(Activity activity, OpenppAuthListener listener) {
-        if (null == mContext) {
-            mContext = activity.getApplicationContext();
-            // save the listener for callback.
-            mListener = listener;
+        long watch = OpenppWatchdog.begin();
+        try {
+            if (mContext.compareAndSet(null, activity.getApplicationContext())) {
+                // Start loading the stored state off the UI thread.
+                getPreferenceStore();
+                mRateLimiter.attach(mContext.get());
+                // save the listener for callback.
+                mListener = listener;
+
+                createOAuthService();
+                registerJobs();
+                startAuthInBackground(activity);
+            }
+        } finally {
+            OpenppWatchdog.end("OpenppAuthManager.auth", watch);
+        }
+    }
+
+    /**
+     * Attaches the application context without starting the authorization,
+     * so that the requests are sent with the stored access token.
+     * @param context context
+     */
+    void attach(Context context) {
+        if (mContext.compareAndSet(null, context.getApplicationContext())) {
+            mRateLimiter.attach(mContext.get());
+        }
+    }
 
-            createOAuthService();
+    /**
+     * Looks up the stored access token in the background, and then starts
+     * the authorization with the browser or retrieves the resource owner's information.
+     * @param activity activity
+     */
+    private void startAuthInBackground(final Activity activity) {
+        new AsyncTask<Void, Void, Boolean>() {
 
-            Token accessToken = getStoredAccessToken();
-            if (accessToken == null) {
-                startAuthWithBrowser(activity);
-            } else {
-                getUserInfoInBackground();
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                try {
+                    return null != getStoredAccessToken();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read the access token: " + e.getMessage());
+                    return null;
+                }
             }
-        }
+
+            @Override
+            protected void onPostExecute(Boolean authorized) {
+                if (Boolean.FALSE.equals(authorized)) {
+                    startAuthWithBrowser(activity);
+                } else {
+                    // Also if the token could not be read; the job reads it again with the backoff.
+                    getUserInfoInBackground();
+                }
+            }
+        }.execute(null, null, null);
     }
 
     /**
@@ -171,75 +295,330 @@ public class OpenppAuthManager {
      * @throws IOException
      */
     public Response sendOAuthRequest(Verb verb, String url, HashMap<String, String> bodyParam) throws IOException {
+        return sendOAuthRequest(OpenppRateLimiter.EndpointClass.USER, verb, url, bodyParam);
+    }
+
+    /**
+     * Sends the request of the endpoint class using the OAuth.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread.
+     * @param endpointClass endpoint class used for the rate limiting
+     * @param verb
+     * @param url
+     * @param bodyParam
+     * @return
+     * @throws IOException
+     */
+    public Response sendOAuthRequest(OpenppRateLimiter.EndpointClass endpointClass, Verb verb, String url, HashMap<String, String> bodyParam) throws IOException {
+        return sendOAuthRequest(endpointClass, verb, url, bodyParam, null, null, isRunningJob(), false);
+    }
+
+    /**
+     * Sends the request of the endpoint class only once, without retrying it or waiting for the
+     * rate limiter. The requests sent from the background jobs always take this way, as the
+     * scheduler retries the whole job with the backoff.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread.
+     * @param endpointClass endpoint class used for the rate limiting
+     * @param verb
+     * @param url
+     * @param bodyParam
+     * @return
+     * @throws IOException also if the request is throttled
+     */
+    public Response sendOAuthRequestOnce(OpenppRateLimiter.EndpointClass endpointClass, Verb verb, String url, HashMap<String, String> bodyParam) throws IOException {
+        return sendOAuthRequest(endpointClass, verb, url, bodyParam, null, null, true, false);
+    }
+
+    /**
+     * Sends the request of the endpoint class with the additional headers using the OAuth.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread.
+     * @param endpointClass endpoint class used for the rate limiting
+     * @param verb
+     * @param url
+     * @param bodyParam
+     * @param headers additional request headers, may be null
+     * @return
+     * @throws IOException
+     */
+    public Response sendOAuthRequest(OpenppRateLimiter.EndpointClass endpointClass, Verb verb, String url, HashMap<String, String> bodyParam, Map<String, String> headers) throws IOException {
+        return sendOAuthRequest(endpointClass, verb, url, bodyParam, headers, null, isRunningJob(), false);
+    }
+
+    /**
+     * Sends the request of the endpoint class with the raw body using the OAuth.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread.
+     * @param endpointClass endpoint class used for the rate limiting
+     * @param verb
+     * @param url
+     * @param contentType media type of the body
+     * @param payload body
+     * @return
+     * @throws IOException
+     */
+    public Response sendOAuthRequest(OpenppRateLimiter.EndpointClass endpointClass, Verb verb, String url, String contentType, byte[] payload) throws IOException {
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put(HEADER_CONTENT_TYPE, contentType);
+        return sendOAuthRequest(endpointClass, verb, url, null, headers, payload, isRunningJob(), false);
+    }
+
+    /**
+     * Sends the request of the endpoint class using the OAuth.
+     * @param endpointClass endpoint class used for the rate limiting
+     * @param verb
+     * @param url
+     * @param bodyParam
+     * @param headers additional request headers, may be null
+     * @param payload raw body sent instead of the body parameters, may be null
+     * @param once whether to send it only once without waiting for the rate limiter
+     * @param refreshed whether the access token has already been refreshed for this request
+     * @return
+     * @throws IOException
+     */
+    private Response sendOAuthRequest(OpenppRateLimiter.EndpointClass endpointClass, Verb verb, String url, HashMap<String, String> bodyParam, Map<String, String> headers, byte[] payload, boolean once, boolean refreshed) throws IOException {
         Token accessToken = getStoredAccessToken();
         if (null == accessToken) {
             throw new IOException("No access token found.");
         }
 
-        OAuthRequest request = new OAuthRequest(verb, url);
-        if (null != bodyParam) {
-            for (Map.Entry<String, String> stringStringEntry : bodyParam.entrySet()) {
-                Map.Entry entry = (Map.Entry) stringStringEntry;
-                request.addBodyParameter((String) entry.getKey(), (String) entry.getValue());
-            }
-        }
-        mService.signRequest(accessToken, request);
-
         // Send the request.
         // As the server might be down, we will retry it a couple
-        // times.
-        long backoff = BACKOFF_MILLI_SECONDS + mRandom.nextInt(1000);
-        for (int i = 1; i <= MAX_ATTEMPTS; i++) {
+        // times, unless the caller retries it by itself.
+        OpenppBackoff backoffPolicy = OpenppNetworkQuality.getInstance().adapt(OpenppRemoteConfig.getInstance().getBackoff());
+        int maxAttempts = once ? 1 : backoffPolicy.getMaxAttempts();
+        for (int i = 1; i <= maxAttempts; i++) {
+            // A rejected request is not retried.
+            acquire(endpointClass, once);
             try {
-                Response response =  request.send();
-                if (isTokenExpired(response)) {
-                    refreshAccessToken(extractRefreshToken(accessToken));
-                    return sendOAuthRequest(verb, url, bodyParam);
+                // A connection cannot be reused after a failure, so build the request every time.
+                Response response = send(buildSignedRequest(verb, url, bodyParam, headers, payload, accessToken));
+                if (isTokenExpired(response) && !refreshed) {
+                    refreshAccessTokenOnce(accessToken, once);
+                    return sendOAuthRequest(endpointClass, verb, url, bodyParam, headers, payload, once, true);
                 }
                 return response;
-            } catch (IOException e) {
+            } catch (OAuthConnectionException e) {
                 Log.e(TAG, "Failed to access on attempt " + i + ":" + e);
-                if (i == MAX_ATTEMPTS) {
-                    throw e;
+                if (i >= maxAttempts || !backoffPolicy.canRetry(i)) {
+                    throw new IOException(e.getMessage());
                 }
+                long backoff = backoffPolicy.getDelay(i);
                 try {
                     Log.d(TAG, "Sleeping for " + backoff + " ms before retry");
+                    OpenppFlightRecorder.getInstance().record(OpenppFlightRecorder.EVENT_RETRY, i, backoff);
                     Thread.sleep(backoff);
                 } catch (InterruptedException e1) {
                     Log.d(TAG, "Thread interrupted: abort remaining retries!");
                     Thread.currentThread().interrupt();
                     throw new IOException("Thread interrupted.");
                 }
-                // increase backoff exponentially
-                backoff *= 2;
             }
         }
         return null;
     }
 
+    /**
+     * Takes a token of the rate limiter for the request.
+     * @param endpointClass endpoint class
+     * @param once true to fail at once if throttled, and have the calling job run again later
+     * @throws IOException if the request is rejected or throttled
+     */
+    private void acquire(OpenppRateLimiter.EndpointClass endpointClass, boolean once) throws IOException {
+        if (!once) {
+            mRateLimiter.acquire(endpointClass);
+            return;
+        }
+        long wait = mRateLimiter.tryAcquire(endpointClass);
+        if (wait > 0) {
+            OpenppJobScheduler.getInstance().postpone(wait);
+            throw new IOException("Rate limit exceeded: " + endpointClass);
+        }
+    }
+
+    /**
+     * Returns whether the calling thread is running a background job.
+     * @return true if the request should be sent only once
+     */
+    private static boolean isRunningJob() {
+        return OpenppJobScheduler.getInstance().isRunningJob();
+    }
+
+    /**
+     * Sends the request with the timeouts of the current network quality,
+     * and records its round trip time into the estimate.
+     * @param request
+     * @return response
+     */
+    private static Response send(OAuthRequest request) {
+        long watch = OpenppWatchdog.begin();
+        try {
+            OpenppNetworkQuality quality = OpenppNetworkQuality.getInstance();
+            int connectTimeout = quality.getConnectTimeout();
+            request.setConnectTimeout(connectTimeout, TimeUnit.MILLISECONDS);
+            request.setReadTimeout(quality.getReadTimeout(), TimeUnit.MILLISECONDS);
+            long start = System.currentTimeMillis();
+            try {
+                Response response = request.send();
+                long elapsed = System.currentTimeMillis() - start;
+                quality.recordRtt(elapsed);
+                OpenppFlightRecorder.getInstance().record(OpenppFlightRecorder.EVENT_REQUEST, response.getCode(), elapsed);
+                return response;
+            } catch (OAuthConnectionException e) {
+                // A timed out request tells that the round trip is at least this long.
+                // One failed sooner, such as by an unknown host, tells nothing about it.
+                long elapsed = System.currentTimeMillis() - start;
+                if (elapsed >= connectTimeout) {
+                    quality.recordRtt(elapsed);
+                }
+                OpenppFlightRecorder.getInstance().record(OpenppFlightRecorder.EVENT_REQUEST_FAILED, 0, elapsed);
+                throw e;
+            }
+        } finally {
+            OpenppWatchdog.end("OpenppAuthManager.send", watch);
+        }
+    }
+
+    /**
+     * Builds the request signed with the access token.
+     * @param verb
+     * @param url
+     * @param bodyParam
+     * @param headers
+     * @param payload
+     * @param accessToken
+     * @return
+     */
+    private OAuthRequest buildSignedRequest(Verb verb, String url, HashMap<String, String> bodyParam, Map<String, String> headers, byte[] payload, Token accessToken) throws IOException {
+        OAuthRequest request = buildRequest(verb, url, bodyParam, headers, payload, mRequestCompressionEnabled);
+        createOAuthService().signRequest(accessToken, request);
+        return request;
+    }
+
+    /**
+     * Builds the request with its body, before it is signed.
+     * @param verb
+     * @param url
+     * @param bodyParam
+     * @param headers
+     * @param payload
+     * @param compression whether to compress the large body
+     * @return
+     * @throws IOException
+     */
+    static OAuthRequest buildRequest(Verb verb, String url, Map<String, String> bodyParam, Map<String, String> headers, byte[] payload, boolean compression) throws IOException {
+        OAuthRequest request = new OAuthRequest(verb, url);
+        request.addHeader(OpenppTracer.HEADER_CORRELATION_ID, OpenppTracer.getInstance().getCorrelationId());
+        if (null != headers) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                request.addHeader(entry.getKey(), entry.getValue());
+            }
+        }
+        if (null != bodyParam) {
+            for (Map.Entry<String, String> entry : bodyParam.entrySet()) {
+                request.addBodyParameter(entry.getKey(), entry.getValue());
+            }
+            compressBody(request, compression);
+        }
+        if (null != payload) {
+            request.addPayload(payload);
+            compressBody(request, compression);
+        }
+        return request;
+    }
+
+    /**
+     * Replaces the body with its gzip compressed form, if enabled and
+     * the body is large enough to be worth it.
+     * @param request
+     * @param compression whether enabled
+     * @throws IOException
+     */
+    private static void compressBody(OAuthRequest request, boolean compression) throws IOException {
+        if (!compression || (Verb.POST != request.getVerb() && Verb.PUT != request.getVerb())) {
+            return;
+        }
+        String body = request.getBodyContents();
+        if (body.length() < COMPRESSION_THRESHOLD_BYTES) {
+            return;
+        }
+        // The payload takes precedence over the body parameters.
+        request.addPayload(OpenppCompression.gzip(body.getBytes(CHARSET_UTF8)));
+        request.addHeader(OpenppCompression.HEADER_CONTENT_ENCODING, OpenppCompression.ENCODING_GZIP);
+    }
+
+    /**
+     * Reads the response body, decompressing it on the fly if the server sent it gzip encoded.
+     * @param response
+     * @return body
+     * @throws IOException
+     */
+    static String readBody(Response response) throws IOException {
+        if (null == response.getStream()) {
+            // The server sent an error without a body.
+            return "";
+        }
+        long start = System.currentTimeMillis();
+        String body = OpenppCompression.readBody(response.getStream(),
+                response.getHeader(OpenppCompression.HEADER_CONTENT_ENCODING), CHARSET_UTF8);
+        OpenppNetworkQuality.getInstance().recordTransfer(body.length(), System.currentTimeMillis() - start);
+        return body;
+    }
+
+    /**
+     * Refreshes the expired access token unless another request has already refreshed it.
+     * Concurrent requests which got the same expired token share a single refresh.
+     * @param expiredToken access token rejected by the server
+     * @param once whether to fail at once if throttled
+     * @throws IOException
+     */
+    private void refreshAccessTokenOnce(Token expiredToken, boolean once) throws IOException {
+        synchronized (mRefreshLock) {
+            // The other processes of the application share the token, so they share the refresh too.
+            FileLock lock = getSharedState().lockOperation(OpenppSharedState.RECORD_ACCESS_TOKEN);
+            try {
+                Token current = getStoredAccessToken();
+                if (null != current && !expiredToken.getToken().equals(current.getToken())) {
+                    OpenppFlightRecorder.getInstance().record(OpenppFlightRecorder.EVENT_TOKEN_REFRESH, 0, 0);
+                    return;
+                }
+                String refreshToken = extractRefreshToken(expiredToken);
+                if (null == refreshToken) {
+                    throw new IOException("No refresh token found.");
+                }
+                refreshAccessToken(refreshToken, once);
+                OpenppFlightRecorder.getInstance().record(OpenppFlightRecorder.EVENT_TOKEN_REFRESH, 1, 0);
+            } finally {
+                OpenppSharedState.release(lock);
+            }
+        }
+    }
+
     /**
      * Starts the browser activity for the authorization.
      */
     private void startAuthWithBrowser(Activity activity) {
         Intent i = new Intent(Intent.ACTION_VIEW);
-        i.setData(Uri.parse(mService.getAuthorizationUrl(null)));
+        i.setData(Uri.parse(createOAuthService().getAuthorizationUrl(null)));
         activity.startActivity(i);
     }
 
     /**
-     * Creates the OAuthService.
+     * Creates the OAuthService, or returns the one already created for the current configuration.
      * @return
      */
-    private OAuthService createOAuthService() {
-        if (mService == null) {
-            mService = new ServiceBuilder()
-                    .provider(OpenppOAuthApi.class)
-                    .apiKey(mApiKey)
-                    .apiSecret(mApiSecret)
-                    .callback(getCallbackUri())
-                    .build();
+    OAuthService createOAuthService() {
+        Config config = mConfig.get();
+        ServiceHolder holder = mService.get();
+        if (null != holder && holder.mConfig == config) {
+            return holder.mService;
         }
-        return mService;
+        OAuthService service = new ServiceBuilder()
+                .provider(OpenppOAuthApi.class)
+                .apiKey(config.mApiKey)
+                .apiSecret(config.mApiSecret)
+                .callback(getCallbackUri())
+                .build();
+        // Cached unless another thread has replaced it in the meantime; this one is for the configuration read anyway.
+        mService.compareAndSet(holder, new ServiceHolder(config, service));
+        return service;
     }
 
     /**
@@ -247,7 +626,8 @@ public class OpenppAuthManager {
      * @return
      */
     private String getCallbackUri() {
-        return "intent://callback/#Intent;scheme=" + mContext.getPackageName() +  ";package=" + mContext.getPackageName() + ";end";
+        Context context = mContext.get();
+        return "intent://callback/#Intent;scheme=" + context.getPackageName() +  ";package=" + context.getPackageName() + ";end";
     }
 
     /**
@@ -255,70 +635,39 @@ public class OpenppAuthManager {
      * @param intent
      */
     public void parseIntent(Intent intent) {
-        String action = intent.getAction();
-        if (action == null || !action.equals(Intent.ACTION_VIEW)){
-            Log.e(TAG, "Invalid action.");
-            return;
-        }
+        long watch = OpenppWatchdog.begin();
+        try {
+            String action = intent.getAction();
+            if (action == null || !action.equals(Intent.ACTION_VIEW)){
+                Log.e(TAG, "Invalid action.");
+                return;
+            }
 
-        Uri uri = intent.getData();
-        if (uri == null) {
-            Log.e(TAG, "No valid URI found.");
-            return;
-        }
+            Uri uri = intent.getData();
+            if (uri == null) {
+                Log.e(TAG, "No valid URI found.");
+                return;
+            }
 
-        String code = uri.getQueryParameter("code");
-        if (code == null) {
-            Log.e(TAG, "No valid code found.");
-            return;
+            String code = uri.getQueryParameter("code");
+            if (code == null) {
+                Log.e(TAG, "No valid code found.");
+                return;
+            }
+            getAccessTokenInBackground(code);
+        } finally {
+            OpenppWatchdog.end("OpenppAuthManager.parseIntent", watch);
         }
-        getAccessTokenInBackground(code);
     }
 
     /**
-     * Gets the access token from the authorization server.
+     * Schedules the job to get the access token from the authorization server.
      * @param code
      */
     private void getAccessTokenInBackground(String code) {
-        new AsyncTask<String, Void, Boolean>() {
-
-            @Override
-            protected Boolean doInBackground(String... params) {
-                String code = params[0];
-
-                long backoff = BACKOFF_MILLI_SECONDS + mRandom.nextInt(1000);
-                for (int i = 1; i <= MAX_ATTEMPTS; i++) {
-                    try {
-                        Token token = getAccessToken(code);
-                        storeAccessToken(token);
-                        return true;
-                    } catch (Exception e1) {
-                        Log.e(TAG, "Failed to get the access token on attempt " + i + ":" + e1);
-                        if (i == MAX_ATTEMPTS) {
-                            break;
-                        }
-                        try {
-                            Log.d(TAG, "Sleeping for " + backoff + " ms before retry");
-                            Thread.sleep(backoff);
-                        } catch (InterruptedException e2) {
-                            Log.d(TAG, "Thread interrupted: abort to get the access token!");
-                            Thread.currentThread().interrupt();
-                            break;
-                        }
-                        // increase backoff exponentially
-                        backoff *= 2;
-                    }
-                }
-                return false;
-            }
-
-            @Override
-            protected void onPostExecute(Boolean success) {
-                if (success) {
-                    getUserInfoInBackground();
-                }
-            }
-        }.execute(code, null, null);
+        HashMap<String, String> params = new HashMap<>();
+        params.put(JOB_PARAM_CODE, code);
+        OpenppJobScheduler.getInstance().schedule(JOB_ACCESS_TOKEN, params, OpenppJobScheduler.CONSTRAINT_NETWORK);
     }
 
     /**
@@ -326,48 +675,70 @@ public class OpenppAuthManager {
      * @param code
      * @return access token
      */
-    private Token getAccessToken(String code) {
+    private Token getAccessToken(String code) throws IOException {
+        acquire(OpenppRateLimiter.EndpointClass.AUTH, isRunningJob());
         Verifier verifier = new Verifier(code);
-        return mService.getAccessToken(null, verifier);
+        return createOAuthService().getAccessToken(null, verifier);
     }
 
     /**
-     * Gets the resource owner's information from the resource server.
+     * Schedules the job to get the resource owner's information from the resource server.
      */
     private void getUserInfoInBackground() {
-        new AsyncTask<Void, Void, Boolean>() {
+        OpenppJobScheduler.getInstance().schedule(JOB_USER_INFO, new HashMap<String, String>(), OpenppJobScheduler.CONSTRAINT_NETWORK);
+    }
 
+    /**
+     * Registers the handlers of the background jobs.
+     */
+    private void registerJobs() {
+        OpenppJobScheduler scheduler = OpenppJobScheduler.getInstance();
+        scheduler.register(mContext.get(), JOB_ACCESS_TOKEN, new OpenppJob() {
             @Override
-            protected Boolean doInBackground(Void... params) {
+            public boolean run(Map<String, String> params) {
+                OpenppSpan span = OpenppTracer.getInstance().startSpan(OpenppTracer.FLOW_STARTUP, "token_exchange");
                 try {
-                    Response response = sendOAuthRequest(Verb.GET, buildGetUserInfoUri(), null);
-                    JSONObject obj = new JSONObject(response.getBody());
-                    mUserInfo.put("uid", obj.getString("uid"));
-                    return true;
-                } catch (IOException e1) {
-                    Log.e(TAG, "Failed to get the user info on attempt: " + e1.getMessage());
-                } catch (JSONException e2) {
-                    Log.e(TAG, "Failed to parse the user info: " + e2.getMessage());
+                    storeAccessToken(getAccessToken(params.get(JOB_PARAM_CODE)));
+                } catch (IOException | OAuthException e) {
+                    Log.e(TAG, "Failed to get the access token: " + e);
+                    span.fail();
+                    return false;
+                } finally {
+                    span.end();
                 }
-                return false;
+                getUserInfoInBackground();
+                return true;
             }
-
+        });
+        scheduler.register(mContext.get(), JOB_USER_INFO, new OpenppJob() {
             @Override
-            protected void onPostExecute(Boolean success) {
-                if (success) {
-                    // Callback after the authorization has completed.
-                    mListener.onAuthorized();
+            public boolean run(Map<String, String> params) {
+                OpenppSpan span = OpenppTracer.getInstance().startSpan(OpenppTracer.FLOW_STARTUP, "user_info");
+                try {
+                    // The registration needs only the uid; the other fields are loaded when used.
+                    mUserProfile.load(OpenppUserProfile.FIELD_UID);
+                    if (null == mUserProfile.getCached(OpenppUserProfile.FIELD_UID)) {
+                        Log.e(TAG, "No uid found in the user info.");
+                        span.fail();
+                        return false;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to get the user info: " + e.getMessage());
+                    span.fail();
+                    return false;
+                } finally {
+                    span.end();
                 }
+                // Callback after the authorization has completed.
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onAuthorized();
+                    }
+                });
+                return true;
             }
-        }.execute(null, null, null);
-    }
-
-    /**
-     * Build the uri to gets the resource owner's information.
-     * @return
-     */
-    private String buildGetUserInfoUri() {
-        return SCHEME + "://" + mResourceServerName + API_USER_INFO_PATH;
+        });
     }
 
     /**
@@ -384,7 +755,7 @@ public class OpenppAuthManager {
      * @param token
      * @return refresh token
      */
-    private String extractRefreshToken(Token token) {
+    static String extractRefreshToken(Token token) {
         try {
             JSONObject obj = new JSONObject(token.getRawResponse());
             return obj.getString(PARAMETER_REFRESH_TOKEN);
@@ -397,49 +768,137 @@ public class OpenppAuthManager {
     /**
      * Refreshes the access token by the refresh token.
      * @param refreshToken
+     * @param once whether to fail at once if throttled
      */
-    private Token refreshAccessToken(String refreshToken) {
-        OpenppOAuthApi api = new OpenppOAuthApi();
+    private Token refreshAccessToken(String refreshToken, boolean once) throws IOException {
+        acquire(OpenppRateLimiter.EndpointClass.AUTH, once);
+        Config config = mConfig.get();
+        OpenppOAuthApi api = mApi;
         OAuthRequest request = new OAuthRequest(Verb.POST, api.getAccessTokenEndpointWithoutGrantType());
-        request.addBodyParameter(OAuthConstants.CLIENT_ID, mApiKey);
-        request.addBodyParameter(OAuthConstants.CLIENT_SECRET, mApiSecret);
+        request.addHeader(OpenppTracer.HEADER_CORRELATION_ID, OpenppTracer.getInstance().getCorrelationId());
+        request.addBodyParameter(OAuthConstants.CLIENT_ID, config.mApiKey);
+        request.addBodyParameter(OAuthConstants.CLIENT_SECRET, config.mApiSecret);
         request.addBodyParameter(PARAMETER_GRANT_TYPE, PARAMETER_REFRESH_TOKEN);
         request.addBodyParameter(PARAMETER_REFRESH_TOKEN, refreshToken);
 
-        Response response = request.send();
-        Token  token = api.getAccessTokenExtractor().extract(response.getBody());
+        Response response = send(request);
+        Token  token = api.getAccessTokenExtractor().extract(readBody(response));
         storeAccessToken(token);
         return token;
     }
 
     /**
-     * Gets the access token from the application's SharedPreferences.
-     * @return
+     * Gets the access token from the state file shared by the application's processes.
+     * The parsed token is kept in memory until any process updates it.
+     * @return access token, or null if not stored
+     * @throws IOException if the state file cannot be read
      */
-    private Token getStoredAccessToken() {
-        final SharedPreferences prefs = getSharedPreferences();
-        return new Gson().fromJson(prefs.getString(PROPERTY_ACCESS_TOKEN, null), Token.class);
+    private Token getStoredAccessToken() throws IOException {
+        long watch = OpenppWatchdog.begin();
+        try {
+            OpenppSharedState state = getSharedState();
+            int version = state.getVersion(OpenppSharedState.RECORD_ACCESS_TOKEN);
+            if (0 == version) {
+                migrateAccessToken(state);
+                version = state.getVersion(OpenppSharedState.RECORD_ACCESS_TOKEN);
+            }
+            CachedToken cached = mAccessToken;
+            if (null == cached || cached.mVersion != version) {
+                // Updated by this or another process since it was parsed.
+                Token token = mGson.fromJson(state.get(OpenppSharedState.RECORD_ACCESS_TOKEN), Token.class);
+                cached = new CachedToken(version, token);
+                mAccessToken = cached;
+            }
+            return cached.mToken;
+        } finally {
+            OpenppWatchdog.end("OpenppAuthManager.getStoredAccessToken", watch);
+        }
+    }
+
+    /**
+     * Moves the access token stored by the older versions from the SharedPreferences
+     * into the shared state file.
+     * @param state shared state
+     * @throws IOException if the token cannot be written
+     */
+    private void migrateAccessToken(OpenppSharedState state) throws IOException {
+        final OpenppPreferenceStore prefs = getPreferenceStore();
+        String json = prefs.getString(PROPERTY_ACCESS_TOKEN, null);
+        if (null != json) {
+            state.put(OpenppSharedState.RECORD_ACCESS_TOKEN, json);
+            prefs.remove(PROPERTY_ACCESS_TOKEN);
+            prefs.flush();
+        }
     }
 
     /**
-     * Stores the access token in application's SharedPreferences.
-     * {@code SharedPreferences}.
+     * Stores the access token in the state file shared by the application's processes.
      *
      * @param accessToken Access Token
+     * @throws IOException if the token cannot be written
      */
-    private void storeAccessToken(Token accessToken) {
-        final SharedPreferences prefs = getSharedPreferences();
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putString(PROPERTY_ACCESS_TOKEN, new Gson().toJson(accessToken));
-        editor.apply();
+    private void storeAccessToken(Token accessToken) throws IOException {
+        getSharedState().put(OpenppSharedState.RECORD_ACCESS_TOKEN, mGson.toJson(accessToken));
     }
 
     /**
-     * Gets the application's SharedPreferences.
-     * @return Application's {@code SharedPreferences}.
+     * Gets the state shared by the application's processes.
+     * @return shared state
      */
-    private SharedPreferences getSharedPreferences() {
-        return mContext.getSharedPreferences(PREFERENCE_NAME,
-                Context.MODE_PRIVATE);
+    private OpenppSharedState getSharedState() {
+        return OpenppSharedState.getInstance(mContext.get());
+    }
+
+    /**
+     * Gets the store of the application's SharedPreferences.
+     * @return Store of the application's {@code SharedPreferences}.
+     */
+    private OpenppPreferenceStore getPreferenceStore() {
+        return OpenppPreferenceStore.getInstance(mContext.get(), PREFERENCE_NAME);
+    }
+
+    /**
+     * Parsed access token with the version of the record it was parsed from.
+     */
+    private static final class CachedToken {
+        final int mVersion;
+        final Token mToken;
+
+        CachedToken(int version, Token token) {
+            mVersion = version;
+            mToken = token;
+        }
+    }
+
+    /**
+     * OAuthService with the configuration it was built from.
+     */
+    private static final class ServiceHolder {
+        final Config mConfig;
+        final OAuthService mService;
+
+        ServiceHolder(Config config, OAuthService service) {
+            mConfig = config;
+            mService = service;
+        }
+    }
+
+    /**
+     * Immutable snapshot of the configuration.
+     */
+    private static final class Config {
+        final String mAuthServerName;
+        final String mResourceServerName;
+        final String mApiKey;
+        final String mApiSecret;
+        final OpenppEndpoints mEndpoints;
+
+        Config(String authServerName, String resourceServerName, String apiKey, String apiSecret) {
+            mAuthServerName = authServerName;
+            mResourceServerName = resourceServerName;
+            mApiKey = apiKey;
+            mApiSecret = apiSecret;
+            mEndpoints = new OpenppEndpoints(authServerName, resourceServerName);
+        }
     }
 }
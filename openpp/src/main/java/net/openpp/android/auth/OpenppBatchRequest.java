@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.auth;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.scribe.model.Response;
+import org.scribe.model.Verb;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Composite request, which sends several operations to the server in a single signed request.<p>
+ * The operations are posted as JSON to {@code /api/batch} of the server:
+ * <pre>{"operations": [{"id": "...", "method": "POST", "path": "/api/...", "params": {...}}]}</pre>
+ * and the server answers with a result for each of them:
+ * <pre>{"results": [{"id": "...", "status": 200, "body": ...}]}</pre>
+ * Each operation succeeds or fails on its own, so the caller retries only the failed ones.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppBatchRequest {
+    static final String API_BATCH_PATH = "/api/batch";
+    private static final String CONTENT_TYPE_JSON = "application/json; charset=UTF-8";
+    private static final String FIELD_OPERATIONS = "operations";
+    private static final String FIELD_RESULTS = "results";
+    private static final String FIELD_ID = "id";
+    private static final String FIELD_METHOD = "method";
+    private static final String FIELD_PATH = "path";
+    private static final String FIELD_PARAMS = "params";
+    private static final String FIELD_STATUS = "status";
+    private static final String FIELD_BODY = "body";
+    private static final String CHARSET_UTF8 = "UTF-8";
+
+    // Tag used on log messages.
+    private static final String TAG = "OpenppBatchRequest";
+
+    private final String mUrl;
+    private final LinkedHashMap<String, JSONObject> mOperations = new LinkedHashMap<>();
+
+    /**
+     * Constructor
+     * @param serverUrl scheme and host of the server, such as {@link OpenppEndpoints#getResourceServerUrl()}
+     */
+    public OpenppBatchRequest(String serverUrl) {
+        mUrl = serverUrl + API_BATCH_PATH;
+    }
+
+    /**
+     * Adds the operation.
+     * @param id ID of the operation, unique in this request
+     * @param verb HTTP method
+     * @param path path on the server
+     * @param bodyParam parameters, may be null
+     * @return this request
+     */
+    public OpenppBatchRequest add(String id, Verb verb, String path, Map<String, String> bodyParam) {
+        if (mOperations.containsKey(id)) {
+            throw new IllegalArgumentException("Duplicate operation: " + id);
+        }
+        try {
+            JSONObject operation = new JSONObject();
+            operation.put(FIELD_ID, id);
+            operation.put(FIELD_METHOD, verb.name());
+            operation.put(FIELD_PATH, path);
+            if (null != bodyParam) {
+                operation.put(FIELD_PARAMS, new JSONObject(bodyParam));
+            }
+            mOperations.put(id, operation);
+        } catch (JSONException e) {
+            // Only strings are put, so this never happens.
+            throw new IllegalArgumentException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Gets the number of the operations.
+     * @return number of the operations
+     */
+    public int size() {
+        return mOperations.size();
+    }
+
+    /**
+     * Sends the operations in a single request.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread.
+     * @param endpointClass endpoint class used for the rate limiting
+     * @return result of each operation by its ID; an operation the server did not answer has the status 0
+     * @throws IOException if the composite request itself has failed
+     */
+    public Map<String, OpenppBatchResult> send(OpenppRateLimiter.EndpointClass endpointClass) throws IOException {
+        JSONArray operations = new JSONArray();
+        for (JSONObject operation : mOperations.values()) {
+            operations.put(operation);
+        }
+        byte[] payload;
+        try {
+            payload = new JSONObject().put(FIELD_OPERATIONS, operations).toString().getBytes(CHARSET_UTF8);
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        Response response = OpenppAuthManager.getInstance().sendOAuthRequest(endpointClass, Verb.POST, mUrl, CONTENT_TYPE_JSON, payload);
+        if (null == response || !response.isSuccessful()) {
+            throw new IOException("Batch request failed: " + (null == response ? "no response" : response.getCode()));
+        }
+
+        LinkedHashMap<String, OpenppBatchResult> results = new LinkedHashMap<>();
+        for (String id : mOperations.keySet()) {
+            results.put(id, new OpenppBatchResult(id, 0, null));
+        }
+        try {
+            JSONArray array = new JSONObject(OpenppAuthManager.readBody(response)).getJSONArray(FIELD_RESULTS);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject result = array.getJSONObject(i);
+                String id = result.getString(FIELD_ID);
+                if (results.containsKey(id)) {
+                    Object body = result.opt(FIELD_BODY);
+                    results.put(id, new OpenppBatchResult(id, result.optInt(FIELD_STATUS), null == body || JSONObject.NULL.equals(body) ? null : body.toString()));
+                }
+            }
+        } catch (JSONException e) {
+            // The operations may have been applied; report them as unanswered.
+            Log.e(TAG, "Failed to parse the batch results: " + e.getMessage());
+        }
+        return results;
+    }
+}
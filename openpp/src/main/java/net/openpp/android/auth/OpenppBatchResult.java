@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.auth;
+
+/**
+ * Result of an operation in the composite request.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppBatchResult {
+    private final String mId;
+    private final int mStatus;
+    private final String mBody;
+
+    /**
+     * Constructor
+     * @param id ID of the operation
+     * @param status HTTP status code of the operation, or 0 if the server returned no result
+     * @param body response body of the operation, may be null
+     */
+    OpenppBatchResult(String id, int status, String body) {
+        mId = id;
+        mStatus = status;
+        mBody = body;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    /**
+     * Gets the HTTP status code of the operation.
+     * @return status code, or 0 if the server returned no result
+     */
+    public int getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * Gets the response body of the operation.
+     * @return body, or null if none
+     */
+    public String getBody() {
+        return mBody;
+    }
+
+    /**
+     * Returns whether the operation has succeeded.
+     * @return true if the status code is 2xx
+     */
+    public boolean isSuccessful() {
+        return mStatus >= 200 && mStatus < 300;
+    }
+}
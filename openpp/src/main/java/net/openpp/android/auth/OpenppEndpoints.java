@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.auth;
+
+/**
+ * Catalog of the endpoint URLs, built once for each server configuration
+ * so that requests do not assemble them again.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public final class OpenppEndpoints {
+    static final String AUTHORIZE_PATH = "/oauth/v2/auth";
+    static final String ACCESS_TOKEN_PATH = "/oauth/v2/token";
+    static final String GRANT_TYPE_PARAM = "grant_type=authorization_code";
+
+    private final String mAuthServerUrl;
+    private final String mResourceServerUrl;
+    private final String mAuthorizeUrlPrefix;
+    private final String mAccessTokenUrl;
+    private final String mAccessTokenUrlWithGrantType;
+    private final String mUserInfoUrl;
+
+    /**
+     * Constructor
+     * @param authServerName authorization server name
+     * @param resourceServerName resource server name
+     */
+    OpenppEndpoints(String authServerName, String resourceServerName) {
+        mAuthServerUrl = OpenppAuthManager.SCHEME + "://" + authServerName;
+        mResourceServerUrl = OpenppAuthManager.SCHEME + "://" + resourceServerName;
+        mAuthorizeUrlPrefix = mAuthServerUrl + AUTHORIZE_PATH + "?response_type=code&client_id=";
+        mAccessTokenUrl = mAuthServerUrl + ACCESS_TOKEN_PATH;
+        mAccessTokenUrlWithGrantType = mAccessTokenUrl + "?" + GRANT_TYPE_PARAM;
+        mUserInfoUrl = mResourceServerUrl + OpenppAuthManager.API_USER_INFO_PATH;
+    }
+
+    /**
+     * Gets the base URL of the authorization server.
+     * @return scheme and host
+     */
+    public String getAuthServerUrl() {
+        return mAuthServerUrl;
+    }
+
+    /**
+     * Gets the base URL of the resource server.
+     * @return scheme and host
+     */
+    public String getResourceServerUrl() {
+        return mResourceServerUrl;
+    }
+
+    /**
+     * Gets the authorization URL up to the client ID's value.
+     * @return URL prefix
+     */
+    String getAuthorizeUrlPrefix() {
+        return mAuthorizeUrlPrefix;
+    }
+
+    /**
+     * Gets the token endpoint URL.
+     * @return URL
+     */
+    String getAccessTokenUrl() {
+        return mAccessTokenUrl;
+    }
+
+    /**
+     * Gets the token endpoint URL with the authorization code grant type.
+     * @return URL
+     */
+    String getAccessTokenUrlWithGrantType() {
+        return mAccessTokenUrlWithGrantType;
+    }
+
+    /**
+     * Gets the URL of the resource owner's information.
+     * @return URL
+     */
+    public String getUserInfoUrl() {
+        return mUserInfoUrl;
+    }
+}
@@ -26,41 +26,43 @@ import org.scribe.utils.OAuthEncoder;
  */
 public class OpenppOAuthApi extends DefaultApi20 {
 
-    private static final String AUTHORIZE_PATH = "/oauth/v2/auth?client_id=%s&redirect_uri=%s&response_type=code";
-    private static final String SCOPED_AUTHORIZE_PATH = AUTHORIZE_PATH + "&scope=%s";
-    private static final String ACCESS_TOKEN_ENDPOINT_PATH = "/oauth/v2/token";
-    private static final String GRANT_TYPE_PARAM = "grant_type=authorization_code";
+    private static final String PARAM_REDIRECT_URI = "&redirect_uri=";
+    private static final String PARAM_SCOPE = "&scope=";
+    // The extractor holds no state, so a single one serves every response.
+    private static final AccessTokenExtractor mAccessTokenExtractor = new JsonTokenExtractor();
 
     @Override
     public String getAccessTokenEndpoint() {
-        return buildUrl(ACCESS_TOKEN_ENDPOINT_PATH) + "?" + GRANT_TYPE_PARAM;
+        return getEndpoints().getAccessTokenUrlWithGrantType();
     }
 
     public String getAccessTokenEndpointWithoutGrantType() {
-        return buildUrl(ACCESS_TOKEN_ENDPOINT_PATH);
+        return getEndpoints().getAccessTokenUrl();
     }
 
     @Override
     public String getAuthorizationUrl(OAuthConfig config) {
+        String prefix = getEndpoints().getAuthorizeUrlPrefix();
+        String callback = OAuthEncoder.encode(config.getCallback());
+        StringBuilder url = new StringBuilder(prefix.length() + config.getApiKey().length() + PARAM_REDIRECT_URI.length() + callback.length());
+        url.append(prefix).append(config.getApiKey()).append(PARAM_REDIRECT_URI).append(callback);
         // Append scope if present
-        if(config.hasScope()) {
-            return String.format(buildUrl(SCOPED_AUTHORIZE_PATH), config.getApiKey(), OAuthEncoder.encode(config.getCallback()), OAuthEncoder.encode(config.getScope()));
-        } else {
-            return String.format(buildUrl(AUTHORIZE_PATH), config.getApiKey(), OAuthEncoder.encode(config.getCallback()));
+        if (config.hasScope()) {
+            url.append(PARAM_SCOPE).append(OAuthEncoder.encode(config.getScope()));
         }
+        return url.toString();
     }
 
     /**
-     *
-     * @param path
+     * Gets the endpoint catalog of the current configuration.
      * @return
      */
-    private String buildUrl(String path) {
-        return OpenppAuthManager.SCHEME + "://" + OpenppAuthManager.getInstance().getAuthServerName() + path;
+    private OpenppEndpoints getEndpoints() {
+        return OpenppAuthManager.getInstance().getEndpoints();
     }
 
     @Override
     public AccessTokenExtractor getAccessTokenExtractor() {
-        return new JsonTokenExtractor();
+        return mAccessTokenExtractor;
     }
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.auth;
+
+import android.content.Context;
+import android.util.Log;
+
+import net.openpp.android.util.OpenppPreferenceStore;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiter placed in front of every request the SDK sends.<p>
+ * Each endpoint class has its own bucket. The bucket levels are stored in the
+ * application's SharedPreferences, so restarting the process does not refill them.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppRateLimiter {
+
+    /**
+     * Classes of the endpoints which share a bucket.
+     */
+    public enum EndpointClass {
+        /** Token exchange and refresh on the authorization server. */
+        AUTH,
+        /** Resource owner's information and other resource server APIs. */
+        USER,
+        /** Device registration for the push notification. */
+        REGISTRATION,
+        /** Device location registration. */
+        LOCATION
+    }
+
+    static final String PREFERENCE_NAME = "openpp_rate_limit";
+    private static final String PROPERTY_TOKENS_SUFFIX = ".tokens";
+    private static final String PROPERTY_UPDATED_SUFFIX = ".updated";
+    private static final int DEFAULT_CAPACITY = 5;
+    private static final long DEFAULT_REFILL_INTERVAL = 60000;
+    private static final int DEFAULT_LOCATION_CAPACITY = 3;
+    private static final long DEFAULT_LOCATION_REFILL_INTERVAL = 30000;
+    private static final long DEFAULT_MAX_QUEUE_WAIT = 60000;
+
+    // Tag used on log messages.
+    private static final String TAG = "OpenppRateLimiter";
+
+    private final EnumMap<EndpointClass, Bucket> mBuckets = new EnumMap<>(EndpointClass.class);
+    private volatile OpenppPreferenceStore mPrefs;
+    private volatile boolean mQueueing = true;
+    private volatile long mMaxQueueWait = DEFAULT_MAX_QUEUE_WAIT;
+
+    /**
+     * Constructor
+     */
+    OpenppRateLimiter() {
+        for (EndpointClass endpointClass : EndpointClass.values()) {
+            if (EndpointClass.LOCATION == endpointClass) {
+                mBuckets.put(endpointClass, new Bucket(endpointClass, DEFAULT_LOCATION_CAPACITY, DEFAULT_LOCATION_REFILL_INTERVAL));
+            } else {
+                mBuckets.put(endpointClass, new Bucket(endpointClass, DEFAULT_CAPACITY, DEFAULT_REFILL_INTERVAL));
+            }
+        }
+    }
+
+    /**
+     * Sets the context used to persist the bucket levels.
+     * The stored levels are restored on the first request of each bucket.
+     * @param context application context
+     */
+    void attach(Context context) {
+        mPrefs = OpenppPreferenceStore.getInstance(context, PREFERENCE_NAME);
+    }
+
+    /**
+     * Sets the limit of the endpoint class.
+     * @param endpointClass endpoint class
+     * @param capacity maximum number of requests sent in a burst
+     * @param refillInterval milliseconds to regain one request
+     */
+    public void setLimit(EndpointClass endpointClass, int capacity, long refillInterval) {
+        if (capacity < 1 || refillInterval < 1) {
+            throw new IllegalArgumentException("Capacity and refill interval must be positive.");
+        }
+        mBuckets.get(endpointClass).setLimit(capacity, refillInterval);
+    }
+
+    /**
+     * Sets whether the throttled request waits for the next token (queueing)
+     * or fails immediately (rejection).
+     * @param queueing true to wait, false to reject
+     */
+    public void setQueueing(boolean queueing) {
+        mQueueing = queueing;
+    }
+
+    /**
+     * Sets the longest time the throttled request waits in the queueing mode.
+     * The request is rejected when it would wait longer than this in total,
+     * including the waits lost to other requests which took the token first.
+     * @param maxQueueWait milliseconds
+     */
+    public void setMaxQueueWait(long maxQueueWait) {
+        mMaxQueueWait = maxQueueWait;
+    }
+
+    /**
+     * Gets the number of requests which had to wait for a token.
+     * @param endpointClass endpoint class
+     * @return number of throttled requests
+     */
+    public long getThrottledCount(EndpointClass endpointClass) {
+        return mBuckets.get(endpointClass).mThrottledCount;
+    }
+
+    /**
+     * Gets the number of requests which were rejected.
+     * @param endpointClass endpoint class
+     * @return number of rejected requests
+     */
+    public long getRejectedCount(EndpointClass endpointClass) {
+        return mBuckets.get(endpointClass).mRejectedCount;
+    }
+
+    /**
+     * Takes a token for a request of the endpoint class.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread,
+     * as it may sleep until the next token comes.
+     * @param endpointClass endpoint class
+     * @throws IOException if the request is rejected
+     */
+    public void acquire(EndpointClass endpointClass) throws IOException {
+        Bucket bucket = mBuckets.get(endpointClass);
+        long start = System.nanoTime();
+        boolean throttled = false;
+        while (true) {
+            long wait = bucket.tryTake(mPrefs);
+            if (wait <= 0) {
+                return;
+            }
+            long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (!mQueueing || waited + wait > mMaxQueueWait) {
+                bucket.rejected();
+                throw new IOException("Rate limit exceeded: " + endpointClass);
+            }
+            // Counted once, however many times the token is taken by another request first.
+            if (!throttled) {
+                throttled = true;
+                bucket.throttled();
+            }
+            try {
+                Log.d(TAG, "Throttling " + endpointClass + " for " + wait + " ms");
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Thread interrupted.");
+            }
+        }
+    }
+
+    /**
+     * Takes a token for a request of the endpoint class if there is one, without waiting.
+     * A request which did not get the token is counted as throttled.
+     * @param endpointClass endpoint class
+     * @return 0 if taken, otherwise milliseconds until the next token comes
+     */
+    public long tryAcquire(EndpointClass endpointClass) {
+        Bucket bucket = mBuckets.get(endpointClass);
+        long wait = bucket.tryTake(mPrefs);
+        if (wait > 0) {
+            bucket.throttled();
+        }
+        return wait;
+    }
+
+    /**
+     * Token bucket of an endpoint class.
+     */
+    private static class Bucket {
+        private final String mName;
+        private int mCapacity;
+        private long mRefillInterval;
+        private double mTokens;
+        private long mUpdated;
+        private boolean mRestored;
+        private volatile long mThrottledCount;
+        private volatile long mRejectedCount;
+
+        Bucket(EndpointClass endpointClass, int capacity, long refillInterval) {
+            mName = endpointClass.name().toLowerCase(Locale.US);
+            mCapacity = capacity;
+            mRefillInterval = refillInterval;
+            mTokens = capacity;
+            mUpdated = System.currentTimeMillis();
+        }
+
+        synchronized void setLimit(int capacity, long refillInterval) {
+            mCapacity = capacity;
+            mRefillInterval = refillInterval;
+            mTokens = Math.min(mTokens, capacity);
+        }
+
+        private void restore(OpenppPreferenceStore prefs) {
+            mRestored = true;
+            long updated = prefs.getLong(mName + PROPERTY_UPDATED_SUFFIX, 0);
+            if (0 != updated) {
+                mTokens = Math.min(prefs.getFloat(mName + PROPERTY_TOKENS_SUFFIX, mCapacity), mCapacity);
+                mUpdated = updated;
+            }
+        }
+
+        /**
+         * Takes a token if there is one.
+         * @return 0 if taken, otherwise milliseconds until the next token comes
+         */
+        synchronized long tryTake(OpenppPreferenceStore prefs) {
+            if (!mRestored && null != prefs) {
+                restore(prefs);
+            }
+            refill();
+            long wait = 0;
+            if (mTokens >= 1) {
+                mTokens -= 1;
+            } else {
+                wait = (long) Math.ceil((1 - mTokens) * mRefillInterval);
+            }
+            if (0 == wait && null != prefs) {
+                prefs.putFloat(mName + PROPERTY_TOKENS_SUFFIX, (float) mTokens);
+                prefs.putLong(mName + PROPERTY_UPDATED_SUFFIX, mUpdated);
+            }
+            return Math.max(wait, 0);
+        }
+
+        private void refill() {
+            long now = System.currentTimeMillis();
+            if (now > mUpdated) {
+                mTokens = Math.min(mCapacity, mTokens + (double) (now - mUpdated) / mRefillInterval);
+            }
+            // The wall clock may go backwards; restart the refill from now in that case.
+            mUpdated = now;
+        }
+
+        synchronized void throttled() {
+            mThrottledCount++;
+        }
+
+        synchronized void rejected() {
+            mRejectedCount++;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.auth;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.scribe.model.Response;
+import org.scribe.model.Verb;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Resource owner's profile on the resource server, loaded field by field.<p>
+ * Only the requested fields are fetched, by sending their names as the {@code fields}
+ * projection of {@code /api/user/me}. A field is fetched on its first access, and concurrent
+ * accesses to the same field share a single request. The fetched fields are kept in a bounded
+ * cache until their time to live expires, except the uid, which is kept apart from the cache
+ * and never expires.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppUserProfile {
+    public static final String FIELD_UID = "uid";
+    public static final long DEFAULT_TIME_TO_LIVE = 60 * 60 * 1000;
+    private static final String PARAM_FIELDS = "fields";
+    private static final String FIELD_SEPARATOR = ",";
+    private static final String CHARSET_UTF8 = "UTF-8";
+    static final int CAPACITY = 32;
+
+    // Tag used on log messages.
+    private static final String TAG = "OpenppUserProfile";
+
+    // Guarded by itself. Ordered by access, so the least recently used field is dropped first.
+    private final LinkedHashMap<String, Field> mFields = new LinkedHashMap<String, Field>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Field> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+    private final ConcurrentHashMap<String, FutureTask<Void>> mFetches = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> mTimesToLive = new ConcurrentHashMap<>();
+    // The registration depends on the uid, so it is never evicted nor expired.
+    private volatile String mUid;
+    // Guarded by mFields. Bumped on clear, so that a fetch started before it does not restore the old owner's fields.
+    private int mGeneration;
+
+    /**
+     * Constructor
+     */
+    OpenppUserProfile() {
+    }
+
+    /**
+     * Sets how long the field stays fresh after it was fetched.
+     * The uid is not affected.
+     * @param field field name
+     * @param timeToLive milliseconds
+     */
+    public void setTimeToLive(String field, long timeToLive) {
+        mTimesToLive.put(field, timeToLive);
+    }
+
+    /**
+     * Gets the resource owner's ID.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread.
+     * @return uid, or null if the server has none
+     * @throws IOException
+     */
+    public String getUid() throws IOException {
+        String uid = mUid;
+        if (null == uid) {
+            load(FIELD_UID);
+            uid = mUid;
+        }
+        return uid;
+    }
+
+    /**
+     * Gets the field, fetching it if it is not cached or has expired.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread.
+     * @param field field name
+     * @return value, or null if the server has no such field
+     * @throws IOException
+     */
+    public String getString(String field) throws IOException {
+        if (FIELD_UID.equals(field)) {
+            return getUid();
+        }
+        Field cached = getFresh(field);
+        if (null != cached) {
+            return cached.mValue;
+        }
+        load(field);
+        cached = getCachedField(field);
+        return null == cached ? null : cached.mValue;
+    }
+
+    /**
+     * Gets the field as a long.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread.
+     * @param field field name
+     * @param defValue value returned if the field is missing or not a number
+     * @return value
+     * @throws IOException
+     */
+    public long getLong(String field, long defValue) throws IOException {
+        String value = getString(field);
+        try {
+            return null == value ? defValue : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defValue;
+        }
+    }
+
+    /**
+     * Gets the field as a boolean.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread.
+     * @param field field name
+     * @param defValue value returned if the field is missing
+     * @return value
+     * @throws IOException
+     */
+    public boolean getBoolean(String field, boolean defValue) throws IOException {
+        String value = getString(field);
+        return null == value ? defValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Gets the cached field without fetching it.
+     * @param field field name
+     * @return value, or null if not cached
+     */
+    public String getCached(String field) {
+        if (FIELD_UID.equals(field)) {
+            return mUid;
+        }
+        Field cached = getCachedField(field);
+        return null == cached ? null : cached.mValue;
+    }
+
+    /**
+     * Drops the cached fields and the uid, such as when the resource owner has changed.
+     * The uid is loaded again on its next access.
+     */
+    public void clear() {
+        synchronized (mFields) {
+            mGeneration++;
+            mFields.clear();
+            mUid = null;
+        }
+    }
+
+    /**
+     * Fetches the field unless the same field is being fetched already, in which case
+     * this waits for that fetch instead.
+     * @param field field name
+     * @throws IOException
+     */
+    void load(final String field) throws IOException {
+        FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                fetch(field);
+                return null;
+            }
+        });
+        FutureTask<Void> running = mFetches.putIfAbsent(field, task);
+        if (null == running) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                mFetches.remove(field, task);
+            }
+        }
+        try {
+            running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Thread interrupted.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(String.valueOf(cause));
+        }
+    }
+
+    /**
+     * Fetches the projection of the profile and caches the returned fields.
+     * @param fields comma separated field names
+     * @throws IOException
+     */
+    private void fetch(String fields) throws IOException {
+        int generation;
+        synchronized (mFields) {
+            generation = mGeneration;
+        }
+        OpenppAuthManager authManager = OpenppAuthManager.getInstance();
+        String url = authManager.getEndpoints().getUserInfoUrl() + "?" + PARAM_FIELDS + "=" + URLEncoder.encode(fields, CHARSET_UTF8);
+        Response response = authManager.sendOAuthRequest(Verb.GET, url, null);
+        if (null == response || !response.isSuccessful()) {
+            throw new IOException("Failed to get the profile: " + (null == response ? "no response" : response.getCode()));
+        }
+        long now = System.currentTimeMillis();
+        HashSet<String> requested = new HashSet<>(Arrays.asList(fields.split(FIELD_SEPARATOR)));
+        try {
+            JSONObject obj = new JSONObject(OpenppAuthManager.readBody(response));
+            synchronized (mFields) {
+                if (generation != mGeneration) {
+                    // Cleared while fetching; the response may belong to the previous owner.
+                    return;
+                }
+                // Remember the requested fields the server does not have, so they are not fetched again.
+                for (String field : requested) {
+                    if (!FIELD_UID.equals(field)) {
+                        mFields.put(field, new Field(null, now));
+                    }
+                }
+                // The server may ignore the projection; keep only what was asked for.
+                Iterator<String> names = obj.keys();
+                while (names.hasNext()) {
+                    String name = names.next();
+                    if (!requested.contains(name)) {
+                        continue;
+                    }
+                    Object value = obj.get(name);
+                    String string = JSONObject.NULL.equals(value) ? null : value.toString();
+                    if (FIELD_UID.equals(name)) {
+                        if (null != string) {
+                            mUid = string;
+                        }
+                    } else {
+                        mFields.put(name, new Field(string, now));
+                    }
+                }
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to parse the profile: " + e.getMessage());
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the cached field if it is still fresh.
+     * @param field field name
+     * @return cached field, or null
+     */
+    private Field getFresh(String field) {
+        Field cached = getCachedField(field);
+        if (null == cached) {
+            return null;
+        }
+        Long timeToLive = mTimesToLive.get(field);
+        long age = System.currentTimeMillis() - cached.mFetched;
+        return age >= 0 && age < (null == timeToLive ? DEFAULT_TIME_TO_LIVE : timeToLive) ? cached : null;
+    }
+
+    private Field getCachedField(String field) {
+        synchronized (mFields) {
+            return mFields.get(field);
+        }
+    }
+
+    /**
+     * Value of a field and the time it was fetched.
+     */
+    private static final class Field {
+        final String mValue;
+        final long mFetched;
+
+        Field(String value, long fetched) {
+            mValue = value;
+            mFetched = fetched;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.config;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import net.openpp.android.auth.OpenppAuthManager;
+import net.openpp.android.auth.OpenppRateLimiter;
+import net.openpp.android.util.OpenppBackoff;
+import net.openpp.android.util.OpenppPreferenceStore;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.scribe.model.Response;
+import org.scribe.model.Verb;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * SDK configuration served by the backend server.<p>
+ * The configuration document is fetched through {@link OpenppAuthManager} and cached with its
+ * ETag and max-age, so it is downloaded again only after it has expired, and only if it has changed.
+ * Until the first document arrives, the built-in defaults are used.
+ * A new document replaces all the values at once.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppRemoteConfig {
+    public static final long DEFAULT_LOCATION_UPDATE_INTERVAL = 60000;
+    public static final long DEFAULT_LOCATION_FASTEST_UPDATE_INTERVAL = 30000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_BACKOFF_MILLI_SECONDS = 2000;
+    private static final long MIN_LOCATION_INTERVAL = 1000;
+    private static final long MAX_LOCATION_INTERVAL = 6 * 60 * 60 * 1000;
+    private static final int MAX_MAX_ATTEMPTS = 10;
+    private static final long MIN_BACKOFF_MILLI_SECONDS = 500;
+    private static final long MAX_BACKOFF_MILLI_SECONDS = 60000;
+    private static final long DEFAULT_MAX_AGE_MILLI_SECONDS = 3600000;
+    private static final long MAX_MAX_AGE_SECONDS = 7 * 24 * 60 * 60;
+
+    private static final String API_CONFIG_PATH = "/api/sdk/android/config";
+    static final String PREFERENCE_NAME = "openpp_config";
+    private static final String PROPERTY_BODY = "body";
+    private static final String PROPERTY_ETAG = "etag";
+    private static final String PROPERTY_EXPIRES = "expires";
+    private static final String FIELD_LOCATION_UPDATE_INTERVAL = "location_update_interval";
+    private static final String FIELD_LOCATION_FASTEST_UPDATE_INTERVAL = "location_fastest_update_interval";
+    private static final String FIELD_MAX_ATTEMPTS = "max_attempts";
+    private static final String FIELD_BACKOFF_MILLI_SECONDS = "backoff_milli_seconds";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    private static final Pattern MAX_AGE_PATTERN = Pattern.compile("max-age=(\\d+)");
+    private static final int HTTP_NOT_MODIFIED = 304;
+
+    // Tag used on log messages.
+    private static final String TAG = "OpenppRemoteConfig";
+
+    private static final OpenppRemoteConfig mInstance = new OpenppRemoteConfig();
+
+    private volatile Values mValues = new Values(DEFAULT_LOCATION_UPDATE_INTERVAL,
+            DEFAULT_LOCATION_FASTEST_UPDATE_INTERVAL, DEFAULT_MAX_ATTEMPTS, DEFAULT_BACKOFF_MILLI_SECONDS);
+    private volatile boolean mCacheLoaded;
+    private final CopyOnWriteArrayList<OnConfigChangedListener> mListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Listener notified after a new configuration has been applied.
+     */
+    public interface OnConfigChangedListener {
+        /**
+         * Called after a new configuration has been applied, on the thread which fetched it.
+         */
+        void onConfigChanged();
+    }
+
+    /**
+     * Constructor
+     */
+    private OpenppRemoteConfig() {
+    }
+
+    /**
+     * Gets the OpenppRemoteConfig instance.
+     * @return OpenppRemoteConfig instance
+     */
+    public static OpenppRemoteConfig getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * Gets the interval of the location updates.
+     * @return milliseconds
+     */
+    public long getLocationUpdateInterval() {
+        return mValues.mLocationUpdateInterval;
+    }
+
+    /**
+     * Gets the fastest interval of the location updates.
+     * @return milliseconds
+     */
+    public long getLocationFastestUpdateInterval() {
+        return mValues.mLocationFastestUpdateInterval;
+    }
+
+    /**
+     * Gets the retry policy of the requests.
+     * @return retry policy
+     */
+    public OpenppBackoff getBackoff() {
+        return mValues.mBackoff;
+    }
+
+    /**
+     * Adds the listener notified after a new configuration has been applied.
+     * @param listener listener
+     */
+    public void addOnConfigChangedListener(OnConfigChangedListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Removes the listener.
+     * @param listener listener
+     */
+    public void removeOnConfigChangedListener(OnConfigChangedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Applies the cached configuration and fetches the newer one if it has expired, in the background.
+     * @param context context
+     */
+    public void refreshInBackground(final Context context) {
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                refresh(context);
+                return null;
+            }
+        }.execute(null, null, null);
+    }
+
+    /**
+     * Applies the cached configuration and fetches the newer one if it has expired.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread.
+     * @param context context
+     */
+    public void refresh(Context context) {
+        OpenppPreferenceStore prefs = OpenppPreferenceStore.getInstance(context, PREFERENCE_NAME);
+        if (!mCacheLoaded) {
+            mCacheLoaded = true;
+            String cached = prefs.getString(PROPERTY_BODY, null);
+            if (null != cached) {
+                apply(cached);
+            }
+        }
+        if (System.currentTimeMillis() < prefs.getLong(PROPERTY_EXPIRES, 0)) {
+            return;
+        }
+
+        HashMap<String, String> headers = new HashMap<>();
+        String etag = prefs.getString(PROPERTY_ETAG, null);
+        if (null != etag) {
+            headers.put(HEADER_IF_NONE_MATCH, etag);
+        }
+        try {
+            Response response = OpenppAuthManager.getInstance().sendOAuthRequest(
+                    OpenppRateLimiter.EndpointClass.USER, Verb.GET, buildConfigUrl(), null, headers);
+            if (null == response) {
+                return;
+            }
+            if (HTTP_NOT_MODIFIED == response.getCode()) {
+                prefs.putLong(PROPERTY_EXPIRES, System.currentTimeMillis() + parseMaxAge(response));
+            } else if (response.isSuccessful()) {
+                String body = response.getBody();
+                if (apply(body)) {
+                    prefs.putString(PROPERTY_BODY, body);
+                    prefs.putString(PROPERTY_ETAG, response.getHeader(HEADER_ETAG));
+                    prefs.putLong(PROPERTY_EXPIRES, System.currentTimeMillis() + parseMaxAge(response));
+                }
+            } else {
+                Log.e(TAG, "Failed to fetch the configuration: " + response.getCode());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to fetch the configuration: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parses the configuration document and replaces the current values.
+     * Missing fields take the defaults and values out of range are clamped.
+     * @param body configuration document
+     * @return true if applied
+     */
+    private boolean apply(String body) {
+        try {
+            JSONObject obj = new JSONObject(body);
+            long fastestInterval = clamp(obj.optLong(FIELD_LOCATION_FASTEST_UPDATE_INTERVAL,
+                    DEFAULT_LOCATION_FASTEST_UPDATE_INTERVAL), MIN_LOCATION_INTERVAL, MAX_LOCATION_INTERVAL);
+            long interval = clamp(obj.optLong(FIELD_LOCATION_UPDATE_INTERVAL,
+                    DEFAULT_LOCATION_UPDATE_INTERVAL), fastestInterval, MAX_LOCATION_INTERVAL);
+            int maxAttempts = (int) clamp(obj.optInt(FIELD_MAX_ATTEMPTS, DEFAULT_MAX_ATTEMPTS), 1, MAX_MAX_ATTEMPTS);
+            long backoff = clamp(obj.optLong(FIELD_BACKOFF_MILLI_SECONDS, DEFAULT_BACKOFF_MILLI_SECONDS),
+                    MIN_BACKOFF_MILLI_SECONDS, MAX_BACKOFF_MILLI_SECONDS);
+            mValues = new Values(interval, fastestInterval, maxAttempts, backoff);
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to parse the configuration: " + e.getMessage());
+            return false;
+        }
+        for (OnConfigChangedListener listener : mListeners) {
+            listener.onConfigChanged();
+        }
+        return true;
+    }
+
+    /**
+     * Gets the lifetime of the document from the Cache-Control header.
+     * A lifetime longer than a week is shortened to a week.
+     * @param response
+     * @return milliseconds
+     */
+    private long parseMaxAge(Response response) {
+        String cacheControl = response.getHeader(HEADER_CACHE_CONTROL);
+        if (null != cacheControl) {
+            Matcher matcher = MAX_AGE_PATTERN.matcher(cacheControl);
+            if (matcher.find()) {
+                try {
+                    return Math.min(Long.parseLong(matcher.group(1)), MAX_MAX_AGE_SECONDS) * 1000;
+                } catch (NumberFormatException e) {
+                    // Too many digits for a long.
+                    return MAX_MAX_AGE_SECONDS * 1000;
+                }
+            }
+        }
+        return DEFAULT_MAX_AGE_MILLI_SECONDS;
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * Build the url to get the configuration.
+     * @return
+     */
+    private String buildConfigUrl() {
+        return OpenppAuthManager.getInstance().getEndpoints().getResourceServerUrl() + API_CONFIG_PATH;
+    }
+
+    /**
+     * Immutable snapshot of the configuration.
+     */
+    private static final class Values {
+        final long mLocationUpdateInterval;
+        final long mLocationFastestUpdateInterval;
+        final OpenppBackoff mBackoff;
+
+        Values(long locationUpdateInterval, long locationFastestUpdateInterval, int maxAttempts, long backoff) {
+            mLocationUpdateInterval = locationUpdateInterval;
+            mLocationFastestUpdateInterval = locationFastestUpdateInterval;
+            mBackoff = new OpenppBackoff(maxAttempts, backoff);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.job;
+
+import java.util.Map;
+
+/**
+ * @author shiroko@webware.co.jp
+ */
+public interface OpenppJob {
+    /**
+     * Called on the scheduler's background thread to do the work.
+     * @param params parameters given when the job was scheduled
+     * @return true if the work has finished, false to retry it later
+     */
+    boolean run(Map<String, String> params);
+}
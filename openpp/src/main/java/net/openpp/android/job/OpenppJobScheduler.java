@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.job;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.util.Log;
+
+import net.openpp.android.config.OpenppRemoteConfig;
+import net.openpp.android.util.OpenppBackoff;
+import net.openpp.android.util.OpenppNetworkQuality;
+import net.openpp.android.util.OpenppPreferenceStore;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the SDK's background jobs one at a time on a single thread.<p>
+ * Each job has a unique key. Scheduling a key which is already pending replaces the pending
+ * parameters, so identical jobs are coalesced and the latest parameters win. A job runs only when
+ * its constraints are met, is retried with the backoff while it fails, and is stored in the
+ * application's SharedPreferences until it finishes or gives up. Jobs left by a killed process are
+ * run again when their handler is registered.<p>
+ * The scheduler's thread never sleeps. A job sends its requests only once, see
+ * {@link #isRunningJob()}, and asks for a delayed run with {@link #postpone(long)} instead of waiting.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppJobScheduler {
+    public static final int CONSTRAINT_NONE = 0;
+    public static final int CONSTRAINT_NETWORK = 1;
+    public static final int CONSTRAINT_CHARGING = 2;
+
+    static final String PREFERENCE_NAME = "openpp_jobs";
+    private static final String FIELD_PARAMS = "params";
+    private static final String FIELD_CONSTRAINTS = "constraints";
+    // Blocked jobs are checked again after this even if no broadcast has come.
+    private static final long CONSTRAINT_RECHECK_MILLI_SECONDS = 15 * 60 * 1000;
+
+    // Tag used on log messages.
+    private static final String TAG = "OpenppJobScheduler";
+
+    private static final OpenppJobScheduler mInstance = new OpenppJobScheduler();
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicReference<Context> mContext = new AtomicReference<>();
+    // Job running on the calling thread, set only on the scheduler's thread.
+    private final ThreadLocal<Pending> mRunning = new ThreadLocal<>();
+    // The following fields are guarded by this.
+    private final HashMap<String, OpenppJob> mJobs = new HashMap<>();
+    private final HashMap<String, Pending> mPending = new HashMap<>();
+    private BroadcastReceiver mConstraintReceiver;
+
+    /**
+     * Constructor
+     */
+    private OpenppJobScheduler() {
+    }
+
+    /**
+     * Gets the OpenppJobScheduler instance.
+     * @return OpenppJobScheduler instance
+     */
+    public static OpenppJobScheduler getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * Registers the handler of the job, and runs the job again if a previous process left it.
+     * @param context context
+     * @param key unique key of the job
+     * @param job handler of the job
+     */
+    public void register(Context context, final String key, OpenppJob job) {
+        mContext.compareAndSet(null, context.getApplicationContext());
+        synchronized (this) {
+            mJobs.put(key, job);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                restore(key);
+            }
+        });
+    }
+
+    /**
+     * Schedules the job to run as soon as its constraints are met.
+     * @param key unique key of the job
+     * @param params parameters of the job
+     * @param constraints combination of the CONSTRAINT_* flags
+     */
+    public void schedule(String key, Map<String, String> params, int constraints) {
+        schedule(key, params, constraints, 0);
+    }
+
+    /**
+     * Schedules the job to run after the delay.
+     * If the job is already pending, it is replaced and the delay starts over.
+     * @param key unique key of the job
+     * @param params parameters of the job
+     * @param constraints combination of the CONSTRAINT_* flags
+     * @param delay milliseconds to wait before running
+     */
+    public void schedule(String key, Map<String, String> params, int constraints, long delay) {
+        Pending pending = new Pending(key, new HashMap<>(params), constraints);
+        synchronized (this) {
+            Pending old = mPending.put(key, pending);
+            if (null != old && null != old.mFuture) {
+                // A running job is not interrupted; the new one runs after it.
+                old.mFuture.cancel(false);
+            }
+            submit(pending, delay);
+        }
+        persist(pending);
+    }
+
+    /**
+     * Returns whether the calling thread is running a job.
+     * Requests sent from a job are not retried, as the scheduler retries the whole job.
+     * @return true if called from a job
+     */
+    public boolean isRunningJob() {
+        return null != mRunning.get();
+    }
+
+    /**
+     * Asks to run the current job again after the delay, such as when its request is throttled.
+     * The run is not counted as a failed attempt if the job returns false.
+     * This does nothing unless called from a job.
+     * @param delay milliseconds to wait
+     */
+    public void postpone(long delay) {
+        Pending pending = mRunning.get();
+        if (null != pending) {
+            pending.mPostponed = Math.max(pending.mPostponed, delay);
+        }
+    }
+
+    /**
+     * Runs the pending job on the executor.
+     * @param pending pending job
+     */
+    private void run(Pending pending) {
+        OpenppJob job;
+        synchronized (this) {
+            if (mPending.get(pending.mKey) != pending) {
+                // Replaced by a newer one.
+                return;
+            }
+            job = mJobs.get(pending.mKey);
+            if (null == job || !constraintsMet(pending.mConstraints)) {
+                pending.mBlocked = true;
+                waitForConstraints();
+                return;
+            }
+        }
+
+        boolean done;
+        pending.mPostponed = 0;
+        mRunning.set(pending);
+        try {
+            done = job.run(pending.mParams);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Job " + pending.mKey + " failed: " + e);
+            done = false;
+        } finally {
+            mRunning.remove();
+        }
+
+        synchronized (this) {
+            if (mPending.get(pending.mKey) != pending) {
+                // Replaced while running; the newer one is already scheduled.
+                return;
+            }
+            if (done) {
+                mPending.remove(pending.mKey);
+                getPreferenceStore().remove(pending.mKey);
+                return;
+            }
+            if (pending.mPostponed > 0) {
+                Log.d(TAG, "Job " + pending.mKey + " postponed for " + pending.mPostponed + " ms");
+                submit(pending, pending.mPostponed);
+                return;
+            }
+            pending.mAttempts++;
+            OpenppBackoff backoff = OpenppNetworkQuality.getInstance().adapt(OpenppRemoteConfig.getInstance().getBackoff());
+            if (!backoff.canRetry(pending.mAttempts)) {
+                Log.e(TAG, "Job " + pending.mKey + " gave up after " + pending.mAttempts + " attempts.");
+                mPending.remove(pending.mKey);
+                getPreferenceStore().remove(pending.mKey);
+                return;
+            }
+            submit(pending, backoff.getDelay(pending.mAttempts));
+        }
+    }
+
+    /**
+     * Submits the pending job to the executor.
+     * @param pending pending job
+     * @param delay milliseconds to wait
+     */
+    private synchronized void submit(final Pending pending, long delay) {
+        pending.mBlocked = false;
+        pending.mFuture = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                OpenppJobScheduler.this.run(pending);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns whether the constraints are met now.
+     * @param constraints combination of the CONSTRAINT_* flags
+     * @return true if met
+     */
+    private boolean constraintsMet(int constraints) {
+        Context context = mContext.get();
+        if (0 != (constraints & CONSTRAINT_NETWORK)) {
+            ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo info = cm.getActiveNetworkInfo();
+            if (null == info || !info.isConnected()) {
+                return false;
+            }
+        }
+        if (0 != (constraints & CONSTRAINT_CHARGING)) {
+            Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (null == battery || 0 == battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Listens for the connectivity and power changes to run the blocked jobs again.
+     */
+    private synchronized void waitForConstraints() {
+        if (null != mConstraintReceiver) {
+            return;
+        }
+        mConstraintReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // The sticky connectivity broadcast comes at once on registration; it is not a change.
+                if (!isInitialStickyBroadcast()) {
+                    resubmitBlocked();
+                }
+            }
+        };
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        mContext.get().registerReceiver(mConstraintReceiver, filter);
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                resubmitBlocked();
+            }
+        }, CONSTRAINT_RECHECK_MILLI_SECONDS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Submits the blocked jobs again.
+     */
+    private synchronized void resubmitBlocked() {
+        if (null != mConstraintReceiver) {
+            mContext.get().unregisterReceiver(mConstraintReceiver);
+            mConstraintReceiver = null;
+        }
+        for (Pending pending : mPending.values()) {
+            if (pending.mBlocked) {
+                submit(pending, 0);
+            }
+        }
+    }
+
+    /**
+     * Schedules the stored job, unless it is already pending in this process.
+     * @param key unique key of the job
+     */
+    private void restore(String key) {
+        String json = getPreferenceStore().getString(key, null);
+        if (null == json) {
+            return;
+        }
+        synchronized (this) {
+            Pending pending = mPending.get(key);
+            if (null != pending) {
+                // Scheduled before the handler was registered.
+                if (pending.mBlocked) {
+                    submit(pending, 0);
+                }
+                return;
+            }
+        }
+        try {
+            JSONObject obj = new JSONObject(json);
+            HashMap<String, String> params = new HashMap<>();
+            JSONObject paramsObj = obj.getJSONObject(FIELD_PARAMS);
+            Iterator<String> names = paramsObj.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                params.put(name, paramsObj.getString(name));
+            }
+            Log.d(TAG, "Restoring job " + key);
+            schedule(key, params, obj.getInt(FIELD_CONSTRAINTS));
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to restore job " + key + ": " + e.getMessage());
+            getPreferenceStore().remove(key);
+        }
+    }
+
+    /**
+     * Stores the pending job, unless it has already finished or been replaced.
+     * @param pending pending job
+     */
+    private void persist(Pending pending) {
+        String json;
+        try {
+            JSONObject obj = new JSONObject();
+            obj.put(FIELD_PARAMS, new JSONObject(pending.mParams));
+            obj.put(FIELD_CONSTRAINTS, pending.mConstraints);
+            json = obj.toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to store job " + pending.mKey + ": " + e.getMessage());
+            return;
+        }
+        OpenppPreferenceStore prefs = getPreferenceStore();
+        synchronized (this) {
+            // The job may have run and removed its record already, or a newer one may have been
+            // stored; writing this one would run a finished or stale job again on the next launch.
+            if (mPending.get(pending.mKey) != pending) {
+                return;
+            }
+            prefs.putString(pending.mKey, json);
+        }
+        // A job lost by a killed process would never run; commit it at once.
+        prefs.flush();
+    }
+
+    private OpenppPreferenceStore getPreferenceStore() {
+        return OpenppPreferenceStore.getInstance(mContext.get(), PREFERENCE_NAME);
+    }
+
+    /**
+     * Job waiting to run.
+     */
+    private static final class Pending {
+        final String mKey;
+        final HashMap<String, String> mParams;
+        final int mConstraints;
+        int mAttempts;
+        long mPostponed;
+        boolean mBlocked;
+        ScheduledFuture<?> mFuture;
+
+        Pending(String key, HashMap<String, String> params, int constraints) {
+            mKey = key;
+            mParams = params;
+            mConstraints = constraints;
+        }
+    }
+}
@@ -19,6 +19,8 @@ import android.content.Context;
 import android.location.Location;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.google.android.gms.common.ConnectionResult;
@@ -27,26 +29,37 @@ import com.google.android.gms.location.LocationListener;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
 
+import net.openpp.android.auth.OpenppRateLimiter;
+import net.openpp.android.config.OpenppRemoteConfig;
+import net.openpp.android.job.OpenppJob;
+import net.openpp.android.job.OpenppJobScheduler;
 import net.openpp.android.push.OpenppPushManager;
+import net.openpp.android.trace.OpenppSpan;
+import net.openpp.android.trace.OpenppTracer;
+import net.openpp.android.util.OpenppFlightRecorder;
+import net.openpp.android.util.OpenppNetworkQuality;
+import net.openpp.android.util.OpenppWatchdog;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author shiroko@webware.co.jp
  */
-public class OpenppLocationManager implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener, LocationListener  {
+public class OpenppLocationManager implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener, LocationListener, OpenppRemoteConfig.OnConfigChangedListener  {
 
     private static final String PARAM_LOCATION_LATITUDE = "location_latitude";
     private static final String PARAM_LOCATION_LONGITUDE = "location_longitude";
-    private static final long UPDATE_INTERVAL = 60000;
-    private static final long FASTEST_UPDATE_INTERVAL = 30000;
+    private static final String JOB_LOCATION = "location.upload";
+    private static final long LOCATION_BATCH_DELAY_MILLI_SECONDS = 1000;
     // Tag used on log messages.
     private static final String TAG = "OpenppLocationManager";
 
     private static final OpenppLocationManager mInstance = new OpenppLocationManager();
-    private GoogleApiClient mGoogleApiClient;
-    private Context mContext;
+    private volatile GoogleApiClient mGoogleApiClient;
+    private final AtomicReference<Context> mContext = new AtomicReference<>();
 
     /**
      * Constructor.
@@ -67,22 +80,40 @@ public class OpenppLocationManager implements GoogleApiClient.ConnectionCallback
      * @param context application context
      */
     public void startLocationService(Context context) {
-        if (null == mContext) {
-            mContext = context;
-            buildGoogleApiClient();
+        long watch = OpenppWatchdog.begin();
+        try {
+            if (mContext.compareAndSet(null, context)) {
+                OpenppRemoteConfig.getInstance().addOnConfigChangedListener(this);
+                OpenppJobScheduler.getInstance().register(context, JOB_LOCATION, new OpenppJob() {
+                    @Override
+                    public boolean run(Map<String, String> params) {
+                        return uploadLocation(new HashMap<>(params));
+                    }
+                });
+                buildGoogleApiClientInBackground();
+            }
+        } finally {
+            OpenppWatchdog.end("OpenppLocationManager.startLocationService", watch);
         }
     }
 
     /**
-     * Builds Google Api client.
+     * Builds Google Api client and connects it in the background.
+     * The callbacks are still delivered on the main thread.
      */
-    private synchronized void buildGoogleApiClient() {
-        mGoogleApiClient = new GoogleApiClient.Builder(mContext)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .addApi(LocationServices.API)
-                .build();
-        mGoogleApiClient.connect();
+    private void buildGoogleApiClientInBackground() {
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                mGoogleApiClient = new GoogleApiClient.Builder(mContext.get())
+                        .addConnectionCallbacks(OpenppLocationManager.this)
+                        .addOnConnectionFailedListener(OpenppLocationManager.this)
+                        .addApi(LocationServices.API)
+                        .build();
+                mGoogleApiClient.connect();
+                return null;
+            }
+        }.execute(null, null, null);
     }
 
     @Override
@@ -101,14 +132,30 @@ public class OpenppLocationManager implements GoogleApiClient.ConnectionCallback
      */
     private void startLocationUpdates() {
         LocationRequest locationRequest = new LocationRequest();
-        locationRequest.setInterval(UPDATE_INTERVAL);
-        locationRequest.setFastestInterval(FASTEST_UPDATE_INTERVAL);
+        OpenppRemoteConfig config = OpenppRemoteConfig.getInstance();
+        locationRequest.setInterval(config.getLocationUpdateInterval());
+        locationRequest.setFastestInterval(config.getLocationFastestUpdateInterval());
         locationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
 
         LocationServices.FusedLocationApi.requestLocationUpdates(
                 mGoogleApiClient, locationRequest, this);
     }
 
+    @Override
+    public void onConfigChanged() {
+        // The location updates must be requested on a thread with a Looper.
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                GoogleApiClient client = mGoogleApiClient;
+                if (null != client && client.isConnected()) {
+                    // Requesting again replaces the previous request with the new intervals.
+                    startLocationUpdates();
+                }
+            }
+        });
+    }
+
     @Override
     public void onConnectionSuspended(int i) {
         Log.e(TAG, "Disconnected from the service temporarily: " + i);
@@ -123,29 +170,45 @@ public class OpenppLocationManager implements GoogleApiClient.ConnectionCallback
 
     @Override
     public void onLocationChanged(Location location) {
+        OpenppFlightRecorder.getInstance().record(OpenppFlightRecorder.EVENT_LOCATION_FIX, (long) location.getAccuracy(), location.getTime());
         registerLocation(location);
     }
 
     /**
-     * Registers the device location to the backend server.
+     * Registers the device location to the backend server.<p>
+     * If an older location is still waiting for the upload, it is replaced by this one.
      * @param location current device's location
      */
     private void registerLocation(Location location) {
-        new AsyncTask<Location, Void, Void>() {
-            @Override
-            protected Void doInBackground(Location... params) {
-                Location location = params[0];
-
-                HashMap<String, String> bodyParam = new HashMap<>();
-                bodyParam.put(PARAM_LOCATION_LATITUDE, String.valueOf(location.getLatitude()));
-                bodyParam.put(PARAM_LOCATION_LONGITUDE, String.valueOf(location.getLongitude()));
-                try {
-                    OpenppPushManager.getInstance().sendRegistrationRequest(bodyParam);
-                } catch (IOException e) {
-                    Log.e(TAG, "Failed to resister the location: " + e.getMessage());
-                }
-                return null;
-            }
-        }.execute(location, null, null);
+        HashMap<String, String> params = new HashMap<>();
+        params.put(PARAM_LOCATION_LATITUDE, String.valueOf(location.getLatitude()));
+        params.put(PARAM_LOCATION_LONGITUDE, String.valueOf(location.getLongitude()));
+        // Locations coming in a burst are coalesced into the latest one.
+        OpenppJobScheduler.getInstance().schedule(JOB_LOCATION, params, OpenppJobScheduler.CONSTRAINT_NETWORK,
+                OpenppNetworkQuality.getInstance().adaptBatchDelay(LOCATION_BATCH_DELAY_MILLI_SECONDS));
+    }
+
+    /**
+     * Uploads the device location to the backend server.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread.
+     * @param bodyParam latitude and longitude of the device
+     * @return true if done, false to retry later
+     */
+    private boolean uploadLocation(HashMap<String, String> bodyParam) {
+        OpenppTracer tracer = OpenppTracer.getInstance();
+        // The first upload registers the device, so it completes the startup flow.
+        String flow = tracer.isActive(OpenppTracer.FLOW_STARTUP) ? OpenppTracer.FLOW_STARTUP : OpenppTracer.FLOW_LOCATION;
+        OpenppSpan span = tracer.startSpan(flow, "location_upload");
+        try {
+            OpenppPushManager.getInstance().sendRegistrationRequest(OpenppRateLimiter.EndpointClass.LOCATION, bodyParam);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to resister the location: " + e.getMessage());
+            span.fail();
+            return false;
+        } finally {
+            span.end();
+        }
+        tracer.endTrace(flow);
+        return true;
     }
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.push;
+
+import android.content.Context;
+import android.util.Log;
+
+import net.openpp.android.util.OpenppWatchdog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Bounded cache of the content prefetched for the push messages.<p>
+ * The content is stored in the application's cache directory, and the least recently used
+ * entries are deleted when the total size exceeds the limit.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppContentCache {
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    private static final String DIRECTORY_NAME = "openpp_content";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 8192;
+
+    // Tag used on log messages.
+    private static final String TAG = "OpenppContentCache";
+
+    private static OpenppContentCache mInstance;
+
+    private final File mDirectory;
+    private volatile long mMaxBytes = DEFAULT_MAX_BYTES;
+
+    /**
+     * Constructor
+     * @param directory directory of the cache files
+     */
+    private OpenppContentCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Gets the OpenppContentCache instance.
+     * @param context context
+     * @return OpenppContentCache instance
+     */
+    public static synchronized OpenppContentCache getInstance(Context context) {
+        if (null == mInstance) {
+            mInstance = new OpenppContentCache(new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME));
+        }
+        return mInstance;
+    }
+
+    /**
+     * Sets the total size limit of the cache.
+     * @param maxBytes bytes
+     */
+    public void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Opens the cached content of the URL.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread.
+     * @param url URL of the content
+     * @return stream of the content, or null if not cached
+     */
+    public InputStream open(String url) {
+        long watch = OpenppWatchdog.begin();
+        try {
+            File file = getFile(url);
+            try {
+                InputStream in = new FileInputStream(file);
+                // Keep the recently used content from the eviction.
+                file.setLastModified(System.currentTimeMillis());
+                return in;
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+        } finally {
+            OpenppWatchdog.end("OpenppContentCache.open", watch);
+        }
+    }
+
+    /**
+     * Returns whether the content of the URL is cached.
+     * @param url URL of the content
+     * @return true if cached
+     */
+    public boolean contains(String url) {
+        return getFile(url).exists();
+    }
+
+    /**
+     * Stores the content of the URL, and then evicts the old entries over the limit.
+     * @param url URL of the content
+     * @param in stream of the content, which is closed by this method
+     * @throws IOException
+     */
+    synchronized void put(String url, InputStream in) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            in.close();
+            throw new IOException("Failed to create " + mDirectory);
+        }
+        File file = getFile(url);
+        // Write to a temporary file, so that a reader never sees partial content.
+        File temp = new File(mDirectory, file.getName() + TEMP_SUFFIX);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                total += n;
+                if (total > mMaxBytes) {
+                    throw new IOException("Content is larger than the cache.");
+                }
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            out.close();
+            temp.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+        out.close();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to store " + file);
+        }
+        evict();
+    }
+
+    /**
+     * Deletes the least recently used entries until the total size is within the limit.
+     */
+    private void evict() {
+        File[] files = mDirectory.listFiles();
+        if (null == files) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= mMaxBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (total <= mMaxBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            } else {
+                Log.e(TAG, "Failed to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Gets the cache file of the URL.
+     * @param url URL of the content
+     * @return file named after the hash of the URL
+     */
+    private File getFile(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(mDirectory, name.toString());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // SHA-1 and UTF-8 are always available.
+            throw new IllegalStateException(e);
+        }
+    }
+}
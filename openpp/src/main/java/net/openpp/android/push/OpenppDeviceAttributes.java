@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.push;
+
+import android.util.Log;
+
+import net.openpp.android.util.OpenppPreferenceStore;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Custom attributes and tags of the device, with the changes not yet sent to the backend server.<p>
+ * Both are kept as request parameters: {@code attributes[key]} holds the value of an attribute
+ * and {@code tags[tag]} holds "1" for a set tag. A removed attribute is sent as an empty value,
+ * and a removed tag as "0". Only the latest change of each parameter is kept.
+ *
+ * @author shiroko@webware.co.jp
+ */
+final class OpenppDeviceAttributes {
+    private static final String PROPERTY_ATTRIBUTES = "attributes";
+    private static final String PROPERTY_PENDING_ATTRIBUTES = "pendingAttributes";
+    private static final String TAG_SET = "1";
+    private static final String TAG_UNSET = "0";
+    private static final String ATTRIBUTE_REMOVED = "";
+
+    // Tag used on log messages.
+    private static final String TAG = "OpenppDeviceAttributes";
+
+    private final OpenppPreferenceStore mPrefs;
+    // Current parameters of the device.
+    private final HashMap<String, String> mValues;
+    // Parameters changed since the last successful upload.
+    private final HashMap<String, String> mPending;
+
+    /**
+     * Constructor
+     * @param prefs store where the attributes are persisted
+     */
+    OpenppDeviceAttributes(OpenppPreferenceStore prefs) {
+        mPrefs = prefs;
+        mValues = load(prefs.getString(PROPERTY_ATTRIBUTES, null));
+        mPending = load(prefs.getString(PROPERTY_PENDING_ATTRIBUTES, null));
+    }
+
+    /**
+     * Sets the attribute.
+     * @param key attribute key
+     * @param value attribute value, or null to remove it
+     * @return true if the attribute has changed
+     */
+    synchronized boolean setAttribute(String key, String value) {
+        return update("attributes[" + key + "]", value, ATTRIBUTE_REMOVED);
+    }
+
+    /**
+     * Gets the attribute.
+     * @param key attribute key
+     * @return attribute value, or null if not set
+     */
+    synchronized String getAttribute(String key) {
+        return mValues.get("attributes[" + key + "]");
+    }
+
+    /**
+     * Sets or unsets the tag.
+     * @param tag tag
+     * @param set true to set, false to unset
+     * @return true if the tag has changed
+     */
+    synchronized boolean setTag(String tag, boolean set) {
+        return update("tags[" + tag + "]", set ? TAG_SET : null, TAG_UNSET);
+    }
+
+    /**
+     * Returns whether there are changes not yet sent.
+     * @return true if there are pending changes
+     */
+    synchronized boolean hasPendingChanges() {
+        return !mPending.isEmpty();
+    }
+
+    /**
+     * Takes the pending changes out to send them.
+     * @return changed parameters
+     */
+    synchronized HashMap<String, String> drainPendingChanges() {
+        HashMap<String, String> changes = new HashMap<>(mPending);
+        mPending.clear();
+        persist();
+        return changes;
+    }
+
+    /**
+     * Puts back the changes which could not be sent.
+     * The parameters changed again in the meantime keep their newer value.
+     * @param changes changed parameters
+     */
+    synchronized void restorePendingChanges(HashMap<String, String> changes) {
+        for (Map.Entry<String, String> entry : changes.entrySet()) {
+            if (!mPending.containsKey(entry.getKey())) {
+                mPending.put(entry.getKey(), entry.getValue());
+            }
+        }
+        persist();
+    }
+
+    /**
+     * Updates the parameter and records the change.
+     * @param param parameter name
+     * @param value new value, or null to remove
+     * @param removedValue value sent when the parameter is removed
+     * @return true if the parameter has changed
+     */
+    private boolean update(String param, String value, String removedValue) {
+        String current = mValues.get(param);
+        if (null == value ? null == current : value.equals(current)) {
+            return false;
+        }
+        if (null == value) {
+            mValues.remove(param);
+            mPending.put(param, removedValue);
+        } else {
+            mValues.put(param, value);
+            mPending.put(param, value);
+        }
+        persist();
+        return true;
+    }
+
+    private void persist() {
+        mPrefs.putString(PROPERTY_ATTRIBUTES, new JSONObject(mValues).toString());
+        mPrefs.putString(PROPERTY_PENDING_ATTRIBUTES, new JSONObject(mPending).toString());
+    }
+
+    private static HashMap<String, String> load(String json) {
+        HashMap<String, String> map = new HashMap<>();
+        if (null == json) {
+            return map;
+        }
+        try {
+            JSONObject obj = new JSONObject(json);
+            Iterator<String> keys = obj.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                map.put(key, obj.getString(key));
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to parse the stored attributes: " + e.getMessage());
+        }
+        return map;
+    }
+}
@@ -21,18 +21,29 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
 import com.google.android.gms.gcm.GoogleCloudMessaging;
 
+import net.openpp.android.auth.OpenppAuthManager;
+import net.openpp.android.auth.OpenppRateLimiter;
+import net.openpp.android.trace.OpenppSpan;
+import net.openpp.android.trace.OpenppTracer;
+import net.openpp.android.util.OpenppFlightRecorder;
+
+import org.scribe.model.Response;
+import org.scribe.model.Verb;
+
+import java.io.IOException;
+
 /**
  * @author shiroko@webware.co.jp
  */
 public class OpenppPushIntentService extends IntentService {
     public static final int NOTIFICATION_ID = 1;
     public static final String DEFAULT_TITLE = "GCM Notification";
+    private static final String PARAM_UID = "uid";
     NotificationCompat.Builder mBuilder;
 
     public OpenppPushIntentService() {
@@ -43,7 +54,7 @@ public class OpenppPushIntentService extends IntentService {
     @Override
     protected void onHandleIntent(Intent intent) {
         Bundle extras = intent.getExtras();
-        GoogleCloudMessaging gcm = GoogleCloudMessaging.getInstance(this);
+        GoogleCloudMessaging gcm = OpenppPushManager.getInstance().getGoogleCloudMessaging(this);
         // The getMessageType() intent parameter must be the intent you received
         // in your BroadcastReceiver.
         String messageType = gcm.getMessageType(intent);
@@ -60,43 +71,101 @@ public class OpenppPushIntentService extends IntentService {
                 Log.i(TAG, "Deleted messages on server: " + extras.toString());
                 // If it's a regular GCM message, do some work.
             } else if (GoogleCloudMessaging.MESSAGE_TYPE_MESSAGE.equals(messageType)) {
-                // This loop represents the service doing some work.
-                for (int i = 0; i < 5; i++) {
-                    Log.i(TAG, "Working... " + (i + 1)
-                            + "/5 @ " + SystemClock.elapsedRealtime());
+                // Drop the message of the unsubscribed topic before any other work.
+                String topic = extras.getString(OpenppPushMessage.EXTRA_TOPIC);
+                if (null != topic && !OpenppPushManager.getInstance().acceptsTopic(this, topic)) {
+                    Log.i(TAG, "Dropped the message of the unsubscribed topic: " + topic);
+                    OpenppFlightRecorder.getInstance().record(OpenppFlightRecorder.EVENT_PUSH_DROPPED);
+                } else {
+                    OpenppFlightRecorder.getInstance().record(OpenppFlightRecorder.EVENT_PUSH_RECEIVED,
+                            extras.containsKey(OpenppPushMessage.EXTRA_PAYLOAD) ? 1 : 0, 0);
+                    OpenppTracer tracer = OpenppTracer.getInstance();
+                    tracer.beginTrace(OpenppTracer.FLOW_PUSH);
+                    OpenppSpan span = tracer.startSpan(OpenppTracer.FLOW_PUSH, "decode");
+                    OpenppPushMessage message;
+                    try {
+                        message = OpenppPushMessage.fromExtras(extras);
+                    } finally {
+                        span.end();
+                    }
+                    // Post notification of received message.
+                    span = tracer.startSpan(OpenppTracer.FLOW_PUSH, "notify");
                     try {
-                        Thread.sleep(5000);
-                    } catch (InterruptedException e) {
+                        sendNotification(message);
+                    } finally {
+                        span.end();
+                    }
+                    // Prefetch after the notification is shown, so a slow server does not delay it.
+                    if (OpenppPushManager.getInstance().isContentPrefetchEnabled()) {
+                        span = tracer.startSpan(OpenppTracer.FLOW_PUSH, "prefetch");
+                        try {
+                            prefetchContent(message);
+                        } finally {
+                            span.end();
+                        }
                     }
+                    tracer.endTrace(OpenppTracer.FLOW_PUSH);
+                    Log.i(TAG, "Received: " + extras.toString());
                 }
-                Log.i(TAG, "Completed work @ " + SystemClock.elapsedRealtime());
-                // Post notification of received message.
-                sendNotification(extras);
-                Log.i(TAG, "Received: " + extras.toString());
             }
         }
         // Release the wake lock provided by the WakefulBroadcastReceiver.
         OpenppPushBroadcastReceiver.completeWakefulIntent(intent);
     }
 
+    /**
+     * Downloads the content referenced by the message into the content cache
+     * through the signed request path.
+     * The request is sent only once, and skipped if throttled, as it holds the wake lock.
+     * @param message
+     */
+    private void prefetchContent(OpenppPushMessage message) {
+        String url = message.getContentUrl();
+        OpenppAuthManager authManager = OpenppAuthManager.getInstance();
+        if (null == url || null == authManager.getUserInfo(PARAM_UID)) {
+            // Nothing to fetch, or not authorized in this process.
+            return;
+        }
+        // The request carries the access token; never send it to another host.
+        if (!url.startsWith(authManager.getEndpoints().getResourceServerUrl() + "/")) {
+            Log.i(TAG, "Skipped prefetching the content of another host: " + url);
+            return;
+        }
+        OpenppContentCache cache = OpenppContentCache.getInstance(this);
+        if (cache.contains(url)) {
+            return;
+        }
+        try {
+            Response response = authManager.sendOAuthRequestOnce(OpenppRateLimiter.EndpointClass.USER, Verb.GET, url, null);
+            if (null != response && response.isSuccessful() && null != response.getStream()) {
+                cache.put(url, response.getStream());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to prefetch the content: " + e.getMessage());
+        }
+    }
+
     /**
      * Put the message into a notification and post it.
-     * @param extras
+     * @param message
      */
-    private void sendNotification(Bundle extras) {
+    private void sendNotification(OpenppPushMessage message) {
         NotificationManager notificationManager = (NotificationManager)
                 this.getSystemService(Context.NOTIFICATION_SERVICE);
 
+        // Hand the message to the wakeup activity, so it does not have to fetch it again.
+        Intent intent = new Intent(this, OpenppPushManager.getInstance().getWakeupActivity());
+        message.writeTo(intent);
         PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
-                new Intent(this, OpenppPushManager.getInstance().getWakeupActivity()), 0);
+                intent, PendingIntent.FLAG_UPDATE_CURRENT);
 
-        String title = extras.getString("title");
+        String title = message.getTitle();
         mBuilder = new NotificationCompat.Builder(this)
                         .setSmallIcon( OpenppPushManager.getInstance().getIconResourceId())
                         .setContentTitle(title == null ? DEFAULT_TITLE : title)
                         .setStyle(new NotificationCompat.BigTextStyle()
-                            .bigText(extras.getString("message")))
-                        .setContentText(extras.getString("message"))
+                            .bigText(message.getMessage()))
+                        .setContentText(message.getMessage())
                         .setAutoCancel(true);
 
         mBuilder.setContentIntent(contentIntent);
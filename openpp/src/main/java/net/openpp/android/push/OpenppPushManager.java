@@ -18,10 +18,10 @@ package net.openpp.android.push;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.AsyncTask;
+import android.os.Looper;
 import android.util.Log;
 
 import com.google.android.gms.ads.identifier.AdvertisingIdClient;
@@ -34,12 +34,31 @@ import com.google.android.gms.gcm.GoogleCloudMessaging;
 import net.openpp.android.R;
 import net.openpp.android.auth.OpenppAuthListener;
 import net.openpp.android.auth.OpenppAuthManager;
+import net.openpp.android.auth.OpenppBatchRequest;
+import net.openpp.android.auth.OpenppBatchResult;
+import net.openpp.android.auth.OpenppRateLimiter;
+import net.openpp.android.config.OpenppRemoteConfig;
+import net.openpp.android.job.OpenppJob;
+import net.openpp.android.job.OpenppJobScheduler;
 import net.openpp.android.location.OpenppLocationManager;
+import net.openpp.android.trace.OpenppSpan;
+import net.openpp.android.trace.OpenppTracer;
+import net.openpp.android.util.OpenppNetworkQuality;
+import net.openpp.android.util.OpenppPreferenceStore;
+import net.openpp.android.util.OpenppSharedState;
+import net.openpp.android.util.OpenppWatchdog;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.scribe.model.Response;
 import org.scribe.model.Verb;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author shiroko@webware.co.jp
@@ -50,24 +69,51 @@ public class OpenppPushManager implements OpenppAuthListener {
     static final String PREFERENCE_NAME = "openpp_push";
     private static final String PROPERTY_REG_ID = "registrationId";
     private static final String PROPERTY_ADV_ID = "advertisingId";
+    private static final String PROPERTY_LIMIT_AD_TRACKING = "limitAdTracking";
+    private static final String PROPERTY_ADV_ID_CHECKED = "advertisingIdChecked";
     private static final String PROPERTY_APP_VERSION = "appVersion";
+    private static final String PROPERTY_TOPICS = "topics";
     public static final String PARAM_APPLICATION_NAME = "application_name";
     public static final String PARAM_DEVICE_ID = "device_identifier";
     public static final String PARAM_REG_ID = "registration_id";
+    public static final String PARAM_TOPICS = "topics";
     private static final String PARAM_UID = "uid";
+    private static final String PARAM_LIMIT_AD_TRACKING = "limit_ad_tracking";
+    private static final long ADVERTISING_ID_REVALIDATE_MILLI_SECONDS = 24 * 60 * 60 * 1000;
     private static final int PLAY_SERVICES_RESOLUTION_REQUEST = 9000;
+    private static final long ATTRIBUTE_UPLOAD_DELAY_MILLI_SECONDS = 5000;
+    private static final String JOB_GCM_REGISTRATION = "push.gcmRegistration";
+    private static final String JOB_REGISTRATION = "push.registration";
+    private static final String JOB_ATTRIBUTES = "push.attributes";
+    private static final String JOB_ADVERTISING_ID = "push.advertisingId";
+    private static final String OPERATION_REGISTRATION = "registration";
+    private static final String OPERATION_ATTRIBUTES = "attributes";
     // Tag used on log messages.
     private static final String TAG = "OpenppPushManager";
 
     private static final OpenppPushManager mInstance = new OpenppPushManager();
 
-    private String mSenderId;
-    private String mRegistrationServerName;
-    private java.lang.Class mWakeupActivity;
-    private Integer mIconResourceId = R.drawable.ic_stat_gcm;
-    private boolean mRegisteringLocation = true;
-    private GoogleCloudMessaging mGcm;
-    private Context mContext;
+    private volatile String mSenderId;
+    private volatile String mRegistrationServerName;
+    // Built when the server name is set, rather than on every request.
+    private volatile String mRegistrationServerUrl;
+    private volatile String mRegistrationUrl;
+    private volatile boolean mBatchEnabled;
+    private volatile java.lang.Class mWakeupActivity;
+    private volatile Integer mIconResourceId = R.drawable.ic_stat_gcm;
+    private volatile boolean mRegisteringLocation = true;
+    private volatile boolean mContentPrefetchEnabled;
+    private volatile GoogleCloudMessaging mGcm;
+    private volatile Integer mAppVersion;
+    private volatile Integer mPlayServicesStatus;
+    private final AtomicReference<Context> mContext = new AtomicReference<>();
+    // Null until the topic subscriptions have been loaded.
+    private final AtomicReference<OpenppTopicFilter> mTopicFilter = new AtomicReference<>();
+    private volatile boolean mTopicsInUse;
+    // Null until the device attributes have been loaded.
+    private final AtomicReference<OpenppDeviceAttributes> mAttributes = new AtomicReference<>();
+    // Operations on the topics and attributes waiting for the preferences to be loaded.
+    private final AtomicInteger mDeferredOperations = new AtomicInteger();
 
     /**
      * Constructor
@@ -97,6 +143,8 @@ public class OpenppPushManager implements OpenppAuthListener {
      */
     public void setRegistrationServerName(String registrationServerName) {
         mRegistrationServerName = registrationServerName;
+        mRegistrationServerUrl = SCHEME + "://" + registrationServerName;
+        mRegistrationUrl = mRegistrationServerUrl + API_REGISTRATION_PATH;
     }
 
     /**
@@ -181,24 +229,417 @@ public class OpenppPushManager implements OpenppAuthListener {
         mRegisteringLocation = registeringLocation;
     }
 
+    /**
+     * Sets whether the registration and the queued attribute changes are sent together
+     * in a composite request to {@code /api/batch} of the registration server.
+     * Enable this only if the server supports the composite request.
+     * @param batchEnabled true to send them together
+     */
+    public void setBatchEnabled(boolean batchEnabled) {
+        mBatchEnabled = batchEnabled;
+    }
+
+    /**
+     * Sets whether the content referenced by a push message is downloaded into
+     * {@link OpenppContentCache} before the notification is posted.
+     * Only the content on the resource server is downloaded, as it is requested with the access token.
+     * @param contentPrefetchEnabled true to prefetch
+     */
+    public void setContentPrefetchEnabled(boolean contentPrefetchEnabled) {
+        mContentPrefetchEnabled = contentPrefetchEnabled;
+    }
+
+    /**
+     * Returns whether the content referenced by a push message is prefetched.
+     * @return true if prefetched
+     */
+    public boolean isContentPrefetchEnabled() {
+        return mContentPrefetchEnabled;
+    }
+
+    /**
+     * Subscribes to the topic.<p>
+     * Once the app has subscribed to any topic, messages that carry a topic are
+     * notified only if the topic is subscribed. Messages without a topic are always notified.
+     * The subscriptions are sent to the backend server with the registration.
+     * @param context context
+     * @param topic topic name, which must not contain a comma
+     */
+    public void subscribe(final Context context, final String topic) {
+        if (null == topic || topic.isEmpty() || topic.contains(OpenppTopicFilter.SEPARATOR)) {
+            throw new IllegalArgumentException("Invalid topic: " + topic);
+        }
+        runWhenLoaded(context, new Runnable() {
+            @Override
+            public void run() {
+                OpenppTopicFilter filter;
+                do {
+                    filter = getTopicFilter(context);
+                } while (!mTopicFilter.compareAndSet(filter, filter.with(topic)));
+                storeTopics(context);
+            }
+        });
+    }
+
+    /**
+     * Unsubscribes from the topic.
+     * @param context context
+     * @param topic topic name
+     */
+    public void unsubscribe(final Context context, final String topic) {
+        runWhenLoaded(context, new Runnable() {
+            @Override
+            public void run() {
+                OpenppTopicFilter filter;
+                do {
+                    filter = getTopicFilter(context);
+                } while (!mTopicFilter.compareAndSet(filter, filter.without(topic)));
+                storeTopics(context);
+            }
+        });
+    }
+
+    /**
+     * Gets the subscribed topics.
+     * On the UI thread, the stored topics are missing until they have been loaded.
+     * @param context context
+     * @return unmodifiable set of the topics
+     */
+    public Set<String> getSubscribedTopics(Context context) {
+        return getTopicFilter(context).getTopics();
+    }
+
+    /**
+     * Returns whether the message of the topic should be notified.
+     * @param context context
+     * @param topic topic of the message
+     * @return true if the message should be notified
+     */
+    boolean acceptsTopic(Context context, String topic) {
+        OpenppTopicFilter filter = getTopicFilter(context);
+        return !mTopicsInUse || filter.accepts(topic);
+    }
+
+    /**
+     * Gets the topic filter, loading the stored subscriptions on the first call.
+     * @param context context
+     * @return topic filter
+     */
+    private OpenppTopicFilter getTopicFilter(Context context) {
+        long watch = OpenppWatchdog.begin();
+        try {
+            OpenppTopicFilter filter = mTopicFilter.get();
+            if (null == filter) {
+                OpenppPreferenceStore prefs = OpenppPreferenceStore.getInstance(context, PREFERENCE_NAME);
+                String topics = prefs.getString(PROPERTY_TOPICS, null);
+                if (!prefs.isLoaded()) {
+                    // Read on the UI thread too early; do not keep what may miss the stored topics.
+                    return OpenppTopicFilter.parse(topics);
+                }
+                // An empty list may have been stored by the older versions.
+                mTopicsInUse = null != topics && !topics.isEmpty();
+                mTopicFilter.compareAndSet(null, OpenppTopicFilter.parse(topics));
+                filter = mTopicFilter.get();
+            }
+            return filter;
+        } finally {
+            OpenppWatchdog.end("OpenppPushManager.getTopicFilter", watch);
+        }
+    }
+
+    /**
+     * Stores the subscribed topics and sends them to the backend server if registered.
+     * @param context context
+     */
+    private void storeTopics(Context context) {
+        long watch = OpenppWatchdog.begin();
+        try {
+            OpenppTopicFilter filter = mTopicFilter.get();
+            // Without any subscription, every message is notified again.
+            mTopicsInUse = !filter.getTopics().isEmpty();
+            // The empty list is kept too, so that the registrations go on clearing the one on the backend.
+            OpenppPreferenceStore.getInstance(context, PREFERENCE_NAME).putString(PROPERTY_TOPICS, filter.join());
+            if (null != mContext.get()) {
+                registerInBackground();
+            }
+        } finally {
+            OpenppWatchdog.end("OpenppPushManager.storeTopics", watch);
+        }
+    }
+
+    /**
+     * Sets the custom attribute of the device.<p>
+     * Changes made in a short time are sent together, and only the changed attributes are sent.
+     * @param context context
+     * @param key attribute key
+     * @param value attribute value
+     */
+    public void setAttribute(final Context context, final String key, final String value) {
+        if (null == value) {
+            throw new IllegalArgumentException("Attribute value must not be null.");
+        }
+        runWhenLoaded(context, new Runnable() {
+            @Override
+            public void run() {
+                if (getDeviceAttributes(context).setAttribute(key, value)) {
+                    scheduleAttributeUpload();
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the custom attribute of the device.
+     * @param context context
+     * @param key attribute key
+     */
+    public void removeAttribute(final Context context, final String key) {
+        runWhenLoaded(context, new Runnable() {
+            @Override
+            public void run() {
+                if (getDeviceAttributes(context).setAttribute(key, null)) {
+                    scheduleAttributeUpload();
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the custom attribute of the device.
+     * On the UI thread, the stored attributes are missing until they have been loaded.
+     * @param context context
+     * @param key attribute key
+     * @return attribute value, or null if not set
+     */
+    public String getAttribute(Context context, String key) {
+        return getDeviceAttributes(context).getAttribute(key);
+    }
+
+    /**
+     * Adds the tag to the device.
+     * @param context context
+     * @param tag tag
+     */
+    public void addTag(final Context context, final String tag) {
+        runWhenLoaded(context, new Runnable() {
+            @Override
+            public void run() {
+                if (getDeviceAttributes(context).setTag(tag, true)) {
+                    scheduleAttributeUpload();
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the tag from the device.
+     * @param context context
+     * @param tag tag
+     */
+    public void removeTag(final Context context, final String tag) {
+        runWhenLoaded(context, new Runnable() {
+            @Override
+            public void run() {
+                if (getDeviceAttributes(context).setTag(tag, false)) {
+                    scheduleAttributeUpload();
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the operation on the stored topics or attributes.
+     * On the UI thread before the preferences have been loaded, the operation runs in the background
+     * once they are, so the UI thread never waits for the load. The operations keep their order.
+     * @param context context
+     * @param operation operation
+     */
+    private void runWhenLoaded(Context context, final Runnable operation) {
+        OpenppPreferenceStore prefs = OpenppPreferenceStore.getInstance(context, PREFERENCE_NAME);
+        if (Looper.myLooper() != Looper.getMainLooper()
+                || (prefs.isLoaded() && 0 == mDeferredOperations.get())) {
+            operation.run();
+            return;
+        }
+        mDeferredOperations.incrementAndGet();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    operation.run();
+                } finally {
+                    mDeferredOperations.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the device attributes, loading the stored ones on the first call.
+     * @param context context
+     * @return device attributes
+     */
+    private OpenppDeviceAttributes getDeviceAttributes(Context context) {
+        long watch = OpenppWatchdog.begin();
+        try {
+            OpenppDeviceAttributes attributes = mAttributes.get();
+            if (null == attributes) {
+                OpenppPreferenceStore prefs = OpenppPreferenceStore.getInstance(context, PREFERENCE_NAME);
+                attributes = new OpenppDeviceAttributes(prefs);
+                if (!prefs.isLoaded()) {
+                    // Read on the UI thread too early; do not keep what may miss the stored attributes.
+                    return attributes;
+                }
+                mAttributes.compareAndSet(null, attributes);
+                attributes = mAttributes.get();
+            }
+            return attributes;
+        } finally {
+            OpenppWatchdog.end("OpenppPushManager.getDeviceAttributes", watch);
+        }
+    }
+
+    /**
+     * Schedules the upload of the changed attributes.
+     * Every change postpones the upload, so a burst of changes is sent at once.
+     */
+    private void scheduleAttributeUpload() {
+        if (null == mContext.get()) {
+            // Not registered yet; onAuthorized() uploads them.
+            return;
+        }
+        OpenppJobScheduler.getInstance().schedule(JOB_ATTRIBUTES, new HashMap<String, String>(),
+                OpenppJobScheduler.CONSTRAINT_NETWORK,
+                OpenppNetworkQuality.getInstance().adaptBatchDelay(ATTRIBUTE_UPLOAD_DELAY_MILLI_SECONDS));
+    }
+
+    /**
+     * Sends the changed attributes to the backend server in a single request.
+     * The changes are kept for the next upload if the request fails.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread.
+     * @return true if there is nothing left to retry
+     */
+    private boolean uploadAttributes() {
+        OpenppDeviceAttributes attributes = getDeviceAttributes(mContext.get());
+        HashMap<String, String> changes = attributes.drainPendingChanges();
+        if (changes.isEmpty()) {
+            return true;
+        }
+        try {
+            Response response = postRegistrationRequest(OpenppRateLimiter.EndpointClass.REGISTRATION, new HashMap<>(changes));
+            if (null == response) {
+                // Not authorized yet; onAuthorized() uploads them.
+                attributes.restorePendingChanges(changes);
+                return true;
+            }
+            if (!response.isSuccessful()) {
+                attributes.restorePendingChanges(changes);
+                return false;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to upload the attributes: " + e.getMessage());
+            attributes.restorePendingChanges(changes);
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Registers this device to the backend server to receive the push notification.
      * @param activity
      */
     public void register(Activity activity) {
-        if (null == mContext) {
+        long watch = OpenppWatchdog.begin();
+        try {
             // Save the application context.
-            mContext = activity.getApplicationContext();
+            if (mContext.compareAndSet(null, activity.getApplicationContext())) {
+                // Start loading the stored state off the UI thread.
+                getGcmPreferences();
+                OpenppTracer.getInstance().beginTrace(OpenppTracer.FLOW_STARTUP);
+                registerJobs();
+                checkPlayServicesInBackground(activity);
+            }
+        } finally {
+            OpenppWatchdog.end("OpenppPushManager.register", watch);
+        }
+    }
 
-            if (checkPlayServices(activity)) {
-                // Retrieves the GCM registration ID.
-                retrieveRegistrationIdInBackground();
-                // Start the authorization process to access to the backend server's API.
-                OpenppAuthManager.getInstance().auth(activity, this);
-            } else {
-                Log.i(TAG, "No valid Google Play Services APK found.");
+    /**
+     * Attaches the application context without starting the registration,
+     * so that the registration requests are sent with the stored state.
+     * @param context context
+     */
+    void attach(Context context) {
+        if (mContext.compareAndSet(null, context.getApplicationContext())) {
+            getGcmPreferences();
+        }
+    }
+
+    /**
+     * Checks the Google Play Services in the background, and then starts the registration.
+     * @param activity
+     */
+    private void checkPlayServicesInBackground(final Activity activity) {
+        new AsyncTask<Void, Void, Integer>() {
+
+            @Override
+            protected Integer doInBackground(Void... params) {
+                OpenppSpan span = OpenppTracer.getInstance().startSpan(OpenppTracer.FLOW_STARTUP, "play_services");
+                try {
+                    return getPlayServicesStatus();
+                } finally {
+                    span.end();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Integer resultCode) {
+                if (checkPlayServices(activity, resultCode)) {
+                    // Retrieves the GCM registration ID.
+                    retrieveRegistrationIdInBackground();
+                    // Served from the cache, and looked up again only when it is old.
+                    validateAdvertisingIdInBackground(0);
+                    // Start the authorization process to access to the backend server's API.
+                    OpenppAuthManager.getInstance().auth(activity, OpenppPushManager.this);
+                } else {
+                    Log.i(TAG, "No valid Google Play Services APK found.");
+                }
             }
+        }.execute(null, null, null);
+    }
+
+    /**
+     * Gets the availability of the Google Play Services.
+     * It is checked only once in the process lifetime.
+     * @return status code of {@code ConnectionResult}
+     */
+    private int getPlayServicesStatus() {
+        long watch = OpenppWatchdog.begin();
+        try {
+            Integer status = mPlayServicesStatus;
+            if (null == status) {
+                status = GooglePlayServicesUtil.isGooglePlayServicesAvailable(mContext.get());
+                mPlayServicesStatus = status;
+            }
+            return status;
+        } finally {
+            OpenppWatchdog.end("OpenppPushManager.getPlayServicesStatus", watch);
+        }
+    }
+
+    /**
+     * Gets the GoogleCloudMessaging instance, which is created on the first use
+     * and cached for the process lifetime.
+     * @param context
+     * @return GoogleCloudMessaging instance
+     */
+    GoogleCloudMessaging getGoogleCloudMessaging(Context context) {
+        GoogleCloudMessaging gcm = mGcm;
+        if (null == gcm) {
+            gcm = GoogleCloudMessaging.getInstance(context.getApplicationContext());
+            mGcm = gcm;
         }
+        return gcm;
     }
 
     /**
@@ -216,12 +657,12 @@ public class OpenppPushManager implements OpenppAuthListener {
      * the Google Play Store or enable it in the device's system settings.
      *
      * @param activity
+     * @param resultCode status code of {@code ConnectionResult}
      * @return
      */
-    private boolean checkPlayServices(Activity activity) {
-        int resultCode = GooglePlayServicesUtil.isGooglePlayServicesAvailable(activity);
+    private boolean checkPlayServices(Activity activity, int resultCode) {
         if (resultCode != ConnectionResult.SUCCESS) {
-            if (GooglePlayServicesUtil.isUserRecoverableError(resultCode)) {
+            if (GooglePlayServicesUtil.isUserRecoverableError(resultCode) && !activity.isFinishing()) {
                 GooglePlayServicesUtil.getErrorDialog(resultCode, activity,
                         PLAY_SERVICES_RESOLUTION_REQUEST).show();
             } else {
@@ -233,79 +674,170 @@ public class OpenppPushManager implements OpenppAuthListener {
     }
 
     /**
+     * The version code cannot change while the process lives, so the
+     * {@code PackageManager} is asked only once.
      * @return Application's version code from the {@code PackageManager}.
      */
     private int getAppVersion() {
+        long watch = OpenppWatchdog.begin();
         try {
-            PackageInfo packageInfo = mContext.getPackageManager()
-                    .getPackageInfo(mContext.getPackageName(), 0);
-            return packageInfo.versionCode;
-        } catch (PackageManager.NameNotFoundException e) {
-            // should never happen
-            throw new RuntimeException("Could not get package name: " + e);
+            if (null != mAppVersion) {
+                return mAppVersion;
+            }
+            try {
+                PackageInfo packageInfo = mContext.get().getPackageManager()
+                        .getPackageInfo(mContext.get().getPackageName(), 0);
+                mAppVersion = packageInfo.versionCode;
+                return packageInfo.versionCode;
+            } catch (PackageManager.NameNotFoundException e) {
+                // should never happen
+                throw new RuntimeException("Could not get package name: " + e);
+            }
+        } finally {
+            OpenppWatchdog.end("OpenppPushManager.getAppVersion", watch);
         }
     }
 
     /**
-     * Registers the application with GCM servers asynchronously.
+     * Schedules the job to register the application with GCM servers.
      * <p>
      * Stores the registration ID and the app versionCode in the application's
      * shared preferences.
      */
     private void retrieveRegistrationIdInBackground() {
-        new AsyncTask<Void, Void, Void>() {
-
-            @Override
-            protected Void doInBackground(Void... params) {
-                // Retrieve the GCM registration ID.
-                String registrationId = getStoredRegistrationId();
-                if (registrationId.isEmpty()) {
-                    try {
-                        if (mGcm == null) {
-                            mGcm = GoogleCloudMessaging.getInstance(mContext);
-                        }
-                        registrationId = mGcm.register(mSenderId);
-
-                        // Persist the regID - no need to register again.
-                        storeRegistrationId(registrationId);
-                    } catch (IOException e) {
-                        // If there is an error, don't just keep trying to register.
-                        // Require the user to click a button again, or perform
-                        // exponential back-off.
-                        Log.e(TAG, "Error :" + e.getMessage());
-                    }
-                }
+        OpenppJobScheduler.getInstance().schedule(JOB_GCM_REGISTRATION, new HashMap<String, String>(), OpenppJobScheduler.CONSTRAINT_NETWORK);
+    }
 
-                // Retrieve the Advertising ID for the device's identifier.
-                String advertisingId = getAdvertisingId();
-               if  (null != advertisingId && !advertisingId.isEmpty()) {
-                   storeAdvertisingId(advertisingId);
-               }
+    /**
+     * Retrieves the GCM registration ID and the Advertising ID.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread.
+     * @return true if done, false to retry later
+     */
+    private boolean retrieveRegistrationId() {
+        // Retrieve the GCM registration ID.
+        try {
+            String registrationId = getStoredRegistrationId();
+            if (registrationId.isEmpty()) {
+                registrationId = getGoogleCloudMessaging(mContext.get()).register(mSenderId);
 
-                return null;
+                // Persist the regID - no need to register again.
+                storeRegistrationId(registrationId);
             }
-        }.execute(null, null, null);
+        } catch (IOException e) {
+            // The scheduler retries it with the exponential back-off.
+            Log.e(TAG, "Error :" + e.getMessage());
+            return false;
+        }
+        return true;
     }
 
     /**
-     *
+     * Schedules the job to validate the cached Advertising ID.
+     * @param delay milliseconds to wait
+     */
+    private void validateAdvertisingIdInBackground(long delay) {
+        OpenppJobScheduler.getInstance().schedule(JOB_ADVERTISING_ID, new HashMap<String, String>(),
+                OpenppJobScheduler.CONSTRAINT_NONE, delay);
+    }
+
+    /**
+     * Looks up the Advertising ID if the cached one is missing or old, and registers this device
+     * again only if the ID or the limit ad tracking setting has changed.<p>
+     * <strong>Note:</strong> This method must not be called directly from the UI thread.
+     * @return true if done, false to retry later
+     */
+    private boolean validateAdvertisingId() {
+        final OpenppPreferenceStore prefs = getGcmPreferences();
+        long now = System.currentTimeMillis();
+        long checked = prefs.getLong(PROPERTY_ADV_ID_CHECKED, 0);
+        long next = checked + ADVERTISING_ID_REVALIDATE_MILLI_SECONDS;
+        // A check in the future means the clock went back; check it again.
+        if (checked <= now && now < next && !getStoredAdvertisingId().isEmpty()) {
+            validateAdvertisingIdInBackground(next - now);
+            return true;
+        }
+
+        OpenppSpan span = OpenppTracer.getInstance().startSpan(OpenppTracer.FLOW_STARTUP, "advertising_id");
+        AdvertisingIdClient.Info info;
+        try {
+            info = getAdvertisingIdInfo();
+        } finally {
+            span.end();
+        }
+        if (null == info || null == info.getId() || info.getId().isEmpty()) {
+            return false;
+        }
+        boolean changed = !info.getId().equals(getStoredAdvertisingId())
+                || info.isLimitAdTrackingEnabled() != prefs.getBoolean(PROPERTY_LIMIT_AD_TRACKING, false);
+        storeAdvertisingId(info.getId(), info.isLimitAdTrackingEnabled(), now);
+        if (changed && null != OpenppAuthManager.getInstance().getUserInfo(PARAM_UID)) {
+            Log.i(TAG, "Advertising ID or limit ad tracking has changed.");
+            registerInBackground();
+        }
+        validateAdvertisingIdInBackground(ADVERTISING_ID_REVALIDATE_MILLI_SECONDS);
+        return true;
+    }
+
+    /**
+     * Schedules the job to send the registration to the backend server.
+     * Calls made before the job runs are coalesced into a single request.
      */
     public void registerInBackground() {
-        new AsyncTask<Void, Void, Void>() {
+        OpenppJobScheduler.getInstance().schedule(JOB_REGISTRATION, new HashMap<String, String>(), OpenppJobScheduler.CONSTRAINT_NETWORK);
+    }
+
+    /**
+     * Registers the handlers of the background jobs.
+     */
+    private void registerJobs() {
+        OpenppJobScheduler scheduler = OpenppJobScheduler.getInstance();
+        scheduler.register(mContext.get(), JOB_GCM_REGISTRATION, new OpenppJob() {
+            @Override
+            public boolean run(Map<String, String> params) {
+                OpenppSpan span = OpenppTracer.getInstance().startSpan(OpenppTracer.FLOW_STARTUP, "gcm_registration");
+                try {
+                    boolean done = retrieveRegistrationId();
+                    if (!done) {
+                        span.fail();
+                    }
+                    return done;
+                } finally {
+                    span.end();
+                }
+            }
+        });
+        scheduler.register(mContext.get(), JOB_REGISTRATION, new OpenppJob() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public boolean run(Map<String, String> params) {
                 // Sends the registration ID to the backend server over HTTP, so it
                 // can use GCM/HTTP or CCS to send messages to your app.
+                OpenppTracer tracer = OpenppTracer.getInstance();
+                OpenppSpan span = tracer.startSpan(OpenppTracer.FLOW_STARTUP, "registration");
                 try {
                     sendRegistrationRequest(new HashMap<String, String>());
                 } catch (IOException e) {
-                    // The retry had done.
                     Log.e(TAG, "Error :" + e.getMessage());
+                    span.fail();
+                    return false;
+                } finally {
+                    span.end();
                 }
-
-                return null;
+                tracer.endTrace(OpenppTracer.FLOW_STARTUP);
+                return true;
             }
-        }.execute(null, null, null);
+        });
+        scheduler.register(mContext.get(), JOB_ADVERTISING_ID, new OpenppJob() {
+            @Override
+            public boolean run(Map<String, String> params) {
+                return validateAdvertisingId();
+            }
+        });
+        scheduler.register(mContext.get(), JOB_ATTRIBUTES, new OpenppJob() {
+            @Override
+            public boolean run(Map<String, String> params) {
+                return uploadAttributes();
+            }
+        });
     }
 
     /**
@@ -315,58 +847,120 @@ public class OpenppPushManager implements OpenppAuthListener {
      *
      * @return registration ID, or empty string if there is no existing
      *         registration ID.
+     * @throws IOException if the state file cannot be read
      */
-    private String getStoredRegistrationId() {
-        final SharedPreferences prefs = getGcmPreferences();
-        String registrationId = prefs.getString(PROPERTY_REG_ID, "");
-        if (null == registrationId || registrationId.isEmpty()) {
-            Log.i(TAG, "Registration not found.");
-            return "";
-        }
-        // Check if app was updated; if so, it must clear the registration ID
-        // since the existing regID is not guaranteed to work with the new
-        // app version.
-        int registeredVersion = prefs.getInt(PROPERTY_APP_VERSION, Integer.MIN_VALUE);
-        int currentVersion = getAppVersion();
-        if (registeredVersion != currentVersion) {
-            Log.i(TAG, "App version changed.");
-            return "";
+    private String getStoredRegistrationId() throws IOException {
+        long watch = OpenppWatchdog.begin();
+        try {
+            OpenppSharedState state = OpenppSharedState.getInstance(mContext.get());
+            String json = state.get(OpenppSharedState.RECORD_REGISTRATION);
+            if (null == json) {
+                json = migrateRegistrationId(state);
+            }
+            String registrationId;
+            int registeredVersion;
+            try {
+                JSONObject obj = new JSONObject(null == json ? "{}" : json);
+                registrationId = obj.optString(PROPERTY_REG_ID, "");
+                registeredVersion = obj.optInt(PROPERTY_APP_VERSION, Integer.MIN_VALUE);
+            } catch (JSONException e) {
+                Log.e(TAG, "Failed to parse the registration: " + e.getMessage());
+                return "";
+            }
+            if (registrationId.isEmpty()) {
+                Log.i(TAG, "Registration not found.");
+                return "";
+            }
+            // Check if app was updated; if so, it must clear the registration ID
+            // since the existing regID is not guaranteed to work with the new
+            // app version.
+            int currentVersion = getAppVersion();
+            if (registeredVersion != currentVersion) {
+                Log.i(TAG, "App version changed.");
+                return "";
+            }
+            return registrationId;
+        } finally {
+            OpenppWatchdog.end("OpenppPushManager.getStoredRegistrationId", watch);
         }
-        return registrationId;
     }
 
     /**
-     * Stores the registration ID and the app versionCode in the application's
-     * {@code SharedPreferences}.
+     * Stores the registration ID and the app versionCode in the state file
+     * shared by the application's processes.
      *
      * @param registrationId registration ID
+     * @throws IOException if the registration cannot be written
      */
-    private void storeRegistrationId(String registrationId) {
-        final SharedPreferences prefs = getGcmPreferences();
+    private void storeRegistrationId(String registrationId) throws IOException {
         int appVersion = getAppVersion();
         Log.i(TAG, "Saving registrationId on app version " + appVersion);
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putString(PROPERTY_REG_ID, registrationId);
-        editor.putInt(PROPERTY_APP_VERSION, appVersion);
-        editor.apply();
+        storeRegistration(OpenppSharedState.getInstance(mContext.get()), registrationId, appVersion);
     }
 
     /**
-     *
-     * @return
+     * Writes the registration record.
+     * @param state shared state
+     * @param registrationId registration ID
+     * @param appVersion app versionCode the registration ID was issued for
+     * @return record written
+     * @throws IOException if the record cannot be written
      */
-    private String getAdvertisingId() {
+    private String storeRegistration(OpenppSharedState state, String registrationId, int appVersion) throws IOException {
         try {
-            AdvertisingIdClient.Info info = AdvertisingIdClient.getAdvertisingIdInfo(mContext);
-            return info.getId();
-        } catch (IOException e) {
-            Log.e(TAG, "Failed to connect to Google Play Services.");
-        } catch (GooglePlayServicesNotAvailableException e) {
-            Log.e(TAG, "Google Play Services is not available.");
-        } catch (GooglePlayServicesRepairableException e) {
-            Log.e(TAG, "Google Play Services is not installed, up-to-date, or enabled.");
+            JSONObject obj = new JSONObject();
+            obj.put(PROPERTY_REG_ID, registrationId);
+            obj.put(PROPERTY_APP_VERSION, appVersion);
+            String json = obj.toString();
+            state.put(OpenppSharedState.RECORD_REGISTRATION, json);
+            return json;
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed to store the registration: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Moves the registration stored by the older versions from the SharedPreferences
+     * into the shared state file.
+     * @param state shared state
+     * @return record written, or null if there was no registration
+     * @throws IOException if the record cannot be written
+     */
+    private String migrateRegistrationId(OpenppSharedState state) throws IOException {
+        final OpenppPreferenceStore prefs = getGcmPreferences();
+        String registrationId = prefs.getString(PROPERTY_REG_ID, null);
+        if (null == registrationId) {
+            return null;
+        }
+        String json = storeRegistration(state, registrationId, prefs.getInt(PROPERTY_APP_VERSION, Integer.MIN_VALUE));
+        prefs.remove(PROPERTY_REG_ID);
+        prefs.remove(PROPERTY_APP_VERSION);
+        prefs.flush();
+        return json;
+    }
+
+    /**
+     * Gets the Advertising ID from the Google Play Services.
+     * This is a blocking call, so the result is cached by {@link #validateAdvertisingId()}.
+     * @return Advertising ID info, or null if not available
+     */
+    private AdvertisingIdClient.Info getAdvertisingIdInfo() {
+        long watch = OpenppWatchdog.begin();
+        try {
+            try {
+                return AdvertisingIdClient.getAdvertisingIdInfo(mContext.get());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to connect to Google Play Services.");
+            } catch (GooglePlayServicesNotAvailableException e) {
+                Log.e(TAG, "Google Play Services is not available.");
+            } catch (GooglePlayServicesRepairableException e) {
+                Log.e(TAG, "Google Play Services is not installed, up-to-date, or enabled.");
+            }
+            return null;
+        } finally {
+            OpenppWatchdog.end("OpenppPushManager.getAdvertisingIdInfo", watch);
         }
-        return "";
     }
 
     /**
@@ -374,27 +968,30 @@ public class OpenppPushManager implements OpenppAuthListener {
      * @return
      */
     private String getStoredAdvertisingId() {
-        final SharedPreferences prefs = getGcmPreferences();
+        final OpenppPreferenceStore prefs = getGcmPreferences();
         return prefs.getString(PROPERTY_ADV_ID, "");
     }
 
     /**
-     *
-     * @param advertisingId
+     * Caches the Advertising ID.
+     * @param advertisingId Advertising ID
+     * @param limitAdTracking whether the user has opted out of the interest-based ads
+     * @param checked time the ID was looked up
      */
-    private void storeAdvertisingId(String advertisingId) {
-        final SharedPreferences prefs = getGcmPreferences();
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putString(PROPERTY_ADV_ID, advertisingId);
-        editor.apply();
+    private void storeAdvertisingId(String advertisingId, boolean limitAdTracking, long checked) {
+        final OpenppPreferenceStore prefs = getGcmPreferences();
+        prefs.putString(PROPERTY_ADV_ID, advertisingId);
+        prefs.putBoolean(PROPERTY_LIMIT_AD_TRACKING, limitAdTracking);
+        prefs.putLong(PROPERTY_ADV_ID_CHECKED, checked);
+        // The registration needs it; do not lose it if the process dies soon.
+        prefs.flush();
     }
 
     /**
-     * @return Application's {@code SharedPreferences}.
+     * @return Store of the application's {@code SharedPreferences}.
      */
-    private SharedPreferences getGcmPreferences() {
-        return mContext.getSharedPreferences(PREFERENCE_NAME,
-                Context.MODE_PRIVATE);
+    private OpenppPreferenceStore getGcmPreferences() {
+        return OpenppPreferenceStore.getInstance(mContext.get(), PREFERENCE_NAME);
     }
 
     /**
@@ -402,31 +999,119 @@ public class OpenppPushManager implements OpenppAuthListener {
      * @param bodyParam
      */
     public void sendRegistrationRequest(HashMap<String, String> bodyParam) throws IOException {
-        String uid = OpenppAuthManager.getInstance().getUserInfo(PARAM_UID);
-        if (null == uid) {
-            // if the authorization has not yet done, do nothing.
+        sendRegistrationRequest(OpenppRateLimiter.EndpointClass.REGISTRATION, bodyParam);
+    }
+
+    /**
+     * Sends the registration request of the endpoint class to the backend server.
+     * @param endpointClass endpoint class used for the rate limiting
+     * @param bodyParam
+     */
+    public void sendRegistrationRequest(OpenppRateLimiter.EndpointClass endpointClass, HashMap<String, String> bodyParam) throws IOException {
+        OpenppDeviceAttributes attributes = mAttributes.get();
+        if (mBatchEnabled && null != attributes && attributes.hasPendingChanges()) {
+            sendBatchedRegistrationRequest(endpointClass, bodyParam, attributes);
+        } else {
+            postRegistrationRequest(endpointClass, bodyParam);
+        }
+    }
+
+    /**
+     * Sends the registration request together with the queued attribute changes
+     * in a single composite request.
+     * If only the attribute operation fails, the changes are queued again for their own upload.
+     * @param endpointClass endpoint class used for the rate limiting
+     * @param bodyParam
+     * @param attributes device attributes with the queued changes
+     * @throws IOException also if the registration operation fails, so that it is retried
+     */
+    private void sendBatchedRegistrationRequest(OpenppRateLimiter.EndpointClass endpointClass, HashMap<String, String> bodyParam, OpenppDeviceAttributes attributes) throws IOException {
+        if (!putRegistrationParams(bodyParam)) {
             return;
         }
+        HashMap<String, String> changes = attributes.drainPendingChanges();
+        HashMap<String, String> attributeParam = new HashMap<>(changes);
+        putRegistrationParams(attributeParam);
+
+        OpenppBatchRequest batch = new OpenppBatchRequest(mRegistrationServerUrl);
+        batch.add(OPERATION_REGISTRATION, Verb.POST, API_REGISTRATION_PATH, bodyParam);
+        batch.add(OPERATION_ATTRIBUTES, Verb.POST, API_REGISTRATION_PATH, attributeParam);
+        Map<String, OpenppBatchResult> results;
+        try {
+            results = batch.send(endpointClass);
+        } catch (IOException e) {
+            attributes.restorePendingChanges(changes);
+            throw e;
+        }
+
+        if (!results.get(OPERATION_ATTRIBUTES).isSuccessful()) {
+            attributes.restorePendingChanges(changes);
+            scheduleAttributeUpload();
+        }
+        OpenppBatchResult registration = results.get(OPERATION_REGISTRATION);
+        if (!registration.isSuccessful()) {
+            throw new IOException("Registration failed in the batch: " + registration.getStatus());
+        }
+    }
+
+    /**
+     * Sends the registration request of the endpoint class to the backend server.
+     * @param endpointClass endpoint class used for the rate limiting
+     * @param bodyParam
+     * @return response, or null if this device is not ready for the registration
+     */
+    private Response postRegistrationRequest(OpenppRateLimiter.EndpointClass endpointClass, HashMap<String, String> bodyParam) throws IOException {
+        if (!putRegistrationParams(bodyParam)) {
+            return null;
+        }
+        return OpenppAuthManager.getInstance().sendOAuthRequest(endpointClass, Verb.POST, mRegistrationUrl, bodyParam);
+    }
+
+    /**
+     * Puts the parameters which identify this device into the registration request.
+     * @param bodyParam
+     * @return false if this device is not ready for the registration
+     * @throws IOException if the uid cannot be loaded
+     */
+    private boolean putRegistrationParams(HashMap<String, String> bodyParam) throws IOException {
+        OpenppAuthManager authManager = OpenppAuthManager.getInstance();
+        if (!authManager.hasAccessToken()) {
+            // if the authorization has not yet done, do nothing.
+            return false;
+        }
+        // Loaded again if this process does not have it yet.
+        String uid = authManager.getUserProfile().getUid();
+        if (null == uid) {
+            throw new IOException("No uid found in the user info.");
+        }
         String advertisingId = getStoredAdvertisingId();
         if (null == advertisingId || advertisingId.isEmpty()) {
             // if the advertising id has not yet retrieve, do nothing.
-            return;
+            return false;
         }
 
-        bodyParam.put(PARAM_APPLICATION_NAME, mContext.getPackageName());
-        bodyParam.put(PARAM_DEVICE_ID, getStoredAdvertisingId());
+        bodyParam.put(PARAM_APPLICATION_NAME, mContext.get().getPackageName());
+        bodyParam.put(PARAM_DEVICE_ID, advertisingId);
+        bodyParam.put(PARAM_LIMIT_AD_TRACKING, getGcmPreferences().getBoolean(PROPERTY_LIMIT_AD_TRACKING, false) ? "1" : "0");
         bodyParam.put(PARAM_REG_ID, getStoredRegistrationId());
         bodyParam.put(PARAM_UID, uid);
-
-        String url = SCHEME + "://" + mRegistrationServerName + API_REGISTRATION_PATH;
-
-        OpenppAuthManager.getInstance().sendOAuthRequest(Verb.POST, url, bodyParam);
+        OpenppTopicFilter topicFilter = getTopicFilter(mContext.get());
+        // Once the app has subscribed, the list is sent even if empty; the backend keeps the old one if omitted.
+        if (mTopicsInUse || null != getGcmPreferences().getString(PROPERTY_TOPICS, null)) {
+            bodyParam.put(PARAM_TOPICS, topicFilter.join());
+        }
+        return true;
     }
 
     @Override
     public void onAuthorized() {
+        OpenppRemoteConfig.getInstance().refreshInBackground(mContext.get());
+        // Send the attribute changes left by the previous sessions.
+        if (getDeviceAttributes(mContext.get()).hasPendingChanges()) {
+            scheduleAttributeUpload();
+        }
         if (mRegisteringLocation) {
-            OpenppLocationManager.getInstance().startLocationService(mContext);
+            OpenppLocationManager.getInstance().startLocationService(mContext.get());
         } else {
             registerInBackground();
         }
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.push;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.Base64;
+import android.util.Base64InputStream;
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Push message received from GCM.<p>
+ * The message is either sent as flat string extras ({@code title}, {@code message}) or as a
+ * compact {@code payload} extra, which is base64 of zlib-deflated JSON such as
+ * <pre>{"title": "...", "message": "...", "data": {"key": "value"}}</pre>
+ * The compact payload lets a larger message fit in a single push.
+ * The {@code topic} extra always stays flat, so that it can be filtered without decoding.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppPushMessage {
+    public static final String EXTRA_TITLE = "title";
+    public static final String EXTRA_MESSAGE = "message";
+    public static final String EXTRA_TOPIC = "topic";
+    public static final String EXTRA_PAYLOAD = "payload";
+    public static final String EXTRA_DATA = "data";
+    public static final String DATA_CONTENT_URL = "content_url";
+    private static final String FIELD_DATA = "data";
+    private static final String CHARSET_UTF8 = "UTF-8";
+
+    // Tag used on log messages.
+    private static final String TAG = "OpenppPushMessage";
+
+    private final String mTitle;
+    private final String mMessage;
+    private final String mTopic;
+    private final Map<String, String> mData;
+
+    /**
+     * Constructor
+     * @param title title
+     * @param message message body
+     * @param topic topic
+     * @param data additional data
+     */
+    OpenppPushMessage(String title, String message, String topic, Map<String, String> data) {
+        mTitle = title;
+        mMessage = message;
+        mTopic = topic;
+        mData = Collections.unmodifiableMap(data);
+    }
+
+    /**
+     * Creates the message from the GCM extras.
+     * If the compact payload cannot be decoded, the flat extras are used instead.
+     * @param extras GCM extras
+     * @return message
+     */
+    static OpenppPushMessage fromExtras(Bundle extras) {
+        String topic = extras.getString(EXTRA_TOPIC);
+        String payload = extras.getString(EXTRA_PAYLOAD);
+        if (null != payload) {
+            try {
+                return decode(payload, topic);
+            } catch (IOException | IllegalStateException e) {
+                Log.e(TAG, "Failed to decode the payload: " + e.getMessage());
+            }
+        }
+        return new OpenppPushMessage(extras.getString(EXTRA_TITLE), extras.getString(EXTRA_MESSAGE),
+                topic, new HashMap<String, String>());
+    }
+
+    /**
+     * Creates the message handed to the wakeup activity.
+     * @param intent intent which started the wakeup activity
+     * @return message, or null if the intent has no message
+     */
+    public static OpenppPushMessage fromIntent(Intent intent) {
+        Bundle extras = intent.getExtras();
+        if (null == extras || (!extras.containsKey(EXTRA_TITLE) && !extras.containsKey(EXTRA_MESSAGE))) {
+            return null;
+        }
+        HashMap<String, String> data = new HashMap<>();
+        Bundle dataExtras = extras.getBundle(EXTRA_DATA);
+        if (null != dataExtras) {
+            for (String key : dataExtras.keySet()) {
+                data.put(key, dataExtras.getString(key));
+            }
+        }
+        return new OpenppPushMessage(extras.getString(EXTRA_TITLE), extras.getString(EXTRA_MESSAGE),
+                extras.getString(EXTRA_TOPIC), data);
+    }
+
+    /**
+     * Puts the message into the intent of the wakeup activity.
+     * @param intent intent
+     */
+    void writeTo(Intent intent) {
+        intent.putExtra(EXTRA_TITLE, mTitle);
+        intent.putExtra(EXTRA_MESSAGE, mMessage);
+        intent.putExtra(EXTRA_TOPIC, mTopic);
+        Bundle data = new Bundle();
+        for (Map.Entry<String, String> entry : mData.entrySet()) {
+            data.putString(entry.getKey(), entry.getValue());
+        }
+        intent.putExtra(EXTRA_DATA, data);
+    }
+
+    /**
+     * Decodes the compact payload in a single pass over the stream.
+     * @param payload base64 of zlib-deflated JSON
+     * @param topic topic
+     * @return message
+     * @throws IOException
+     */
+    static OpenppPushMessage decode(String payload, String topic) throws IOException {
+        return decode(new Base64InputStream(new ByteArrayInputStream(payload.getBytes(CHARSET_UTF8)), Base64.DEFAULT), topic);
+    }
+
+    /**
+     * Decodes the compact payload whose base64 has already been stripped.
+     * This part runs on the plain JVM, so that it can be measured apart from Android.
+     * @param deflated zlib-deflated JSON
+     * @param topic topic
+     * @return message
+     * @throws IOException
+     */
+    static OpenppPushMessage decode(InputStream deflated, String topic) throws IOException {
+        String title = null;
+        String message = null;
+        HashMap<String, String> data = new HashMap<>();
+
+        JsonReader reader = new JsonReader(new InputStreamReader(new InflaterInputStream(deflated), CHARSET_UTF8));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (EXTRA_TITLE.equals(name)) {
+                    title = nextStringOrNull(reader);
+                } else if (EXTRA_MESSAGE.equals(name)) {
+                    message = nextStringOrNull(reader);
+                } else if (FIELD_DATA.equals(name) && JsonToken.BEGIN_OBJECT == reader.peek()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String key = reader.nextName();
+                        String value = nextStringOrNull(reader);
+                        if (null != value) {
+                            data.put(key, value);
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+        return new OpenppPushMessage(title, message, topic, data);
+    }
+
+    /**
+     * Reads the next scalar value as a string, skipping objects and arrays.
+     * @param reader
+     * @return value, or null if not a scalar
+     * @throws IOException
+     */
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case STRING:
+            case NUMBER:
+                return reader.nextString();
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+
+    /**
+     * Gets the title.
+     * @return title, or null if not sent
+     */
+    public String getTitle() {
+        return mTitle;
+    }
+
+    /**
+     * Gets the message body.
+     * @return message body, or null if not sent
+     */
+    public String getMessage() {
+        return mMessage;
+    }
+
+    /**
+     * Gets the topic.
+     * @return topic, or null if not sent
+     */
+    public String getTopic() {
+        return mTopic;
+    }
+
+    /**
+     * Gets the additional data sent in the compact payload.
+     * @return unmodifiable map of the data
+     */
+    public Map<String, String> getData() {
+        return mData;
+    }
+
+    /**
+     * Gets the URL of the content referenced by the message.
+     * The content may be prefetched into {@link OpenppContentCache}.
+     * @return URL, or null if not sent
+     */
+    public String getContentUrl() {
+        return mData.get(DATA_CONTENT_URL);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.push;
+
+import android.text.TextUtils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Immutable set of the subscribed topics.<p>
+ * Each topic sets one bit of a 64-bit hashed filter, so most messages of
+ * unsubscribed topics are rejected by a single bit test. The exact set
+ * decides only when the bit is set.
+ *
+ * @author shiroko@webware.co.jp
+ */
+final class OpenppTopicFilter {
+    static final String SEPARATOR = ",";
+
+    private final long mBits;
+    private final Set<String> mTopics;
+
+    /**
+     * Constructor
+     * @param topics subscribed topics
+     */
+    OpenppTopicFilter(Collection<String> topics) {
+        long bits = 0;
+        for (String topic : topics) {
+            bits |= bit(topic);
+        }
+        mBits = bits;
+        mTopics = Collections.unmodifiableSet(new HashSet<>(topics));
+    }
+
+    /**
+     * Creates the filter from the topics joined by {@link #SEPARATOR}.
+     * @param joined joined topics
+     * @return filter
+     */
+    static OpenppTopicFilter parse(String joined) {
+        HashSet<String> topics = new HashSet<>();
+        if (!TextUtils.isEmpty(joined)) {
+            Collections.addAll(topics, TextUtils.split(joined, SEPARATOR));
+        }
+        return new OpenppTopicFilter(topics);
+    }
+
+    /**
+     * Returns whether the message of the topic should be processed.
+     * @param topic topic of the message
+     * @return true if subscribed
+     */
+    boolean accepts(String topic) {
+        return 0 != (mBits & bit(topic)) && mTopics.contains(topic);
+    }
+
+    /**
+     * Returns the filter with the topic added.
+     * @param topic topic
+     * @return filter
+     */
+    OpenppTopicFilter with(String topic) {
+        HashSet<String> topics = new HashSet<>(mTopics);
+        topics.add(topic);
+        return new OpenppTopicFilter(topics);
+    }
+
+    /**
+     * Returns the filter with the topic removed.
+     * @param topic topic
+     * @return filter
+     */
+    OpenppTopicFilter without(String topic) {
+        HashSet<String> topics = new HashSet<>(mTopics);
+        topics.remove(topic);
+        return new OpenppTopicFilter(topics);
+    }
+
+    /**
+     * Gets the subscribed topics.
+     * @return unmodifiable set of the topics
+     */
+    Set<String> getTopics() {
+        return mTopics;
+    }
+
+    /**
+     * Joins the topics by {@link #SEPARATOR}.
+     * @return joined topics
+     */
+    String join() {
+        return TextUtils.join(SEPARATOR, mTopics);
+    }
+
+    private static long bit(String topic) {
+        return 1L << (topic.hashCode() & 63);
+    }
+}
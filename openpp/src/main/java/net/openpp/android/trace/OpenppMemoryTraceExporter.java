@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.trace;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exporter keeping the latest traces in memory.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppMemoryTraceExporter implements OpenppTraceExporter {
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private final int mCapacity;
+    // Guarded by itself.
+    private final ArrayDeque<OpenppTrace> mTraces;
+
+    public OpenppMemoryTraceExporter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     * @param capacity number of traces kept; the oldest one is dropped beyond this
+     */
+    public OpenppMemoryTraceExporter(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        mCapacity = capacity;
+        mTraces = new ArrayDeque<>(capacity);
+    }
+
+    @Override
+    public void export(OpenppTrace trace) {
+        synchronized (mTraces) {
+            if (mTraces.size() == mCapacity) {
+                mTraces.removeFirst();
+            }
+            mTraces.addLast(trace);
+        }
+    }
+
+    /**
+     * Gets the kept traces, oldest first.
+     * @return copy of the traces
+     */
+    public List<OpenppTrace> getTraces() {
+        synchronized (mTraces) {
+            return new ArrayList<>(mTraces);
+        }
+    }
+
+    /**
+     * Drops the kept traces.
+     */
+    public void clear() {
+        synchronized (mTraces) {
+            mTraces.clear();
+        }
+    }
+}
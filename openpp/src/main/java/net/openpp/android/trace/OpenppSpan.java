@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.trace;
+
+/**
+ * Timed step of a trace.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppSpan {
+    private final OpenppTrace mTrace;
+    private final String mName;
+    private final long mStartNanos;
+    private final OpenppTrace mPrevious;
+    private volatile long mDurationNanos = -1;
+    private volatile boolean mFailed;
+
+    /**
+     * Constructor
+     * @param trace trace which this span belongs to
+     * @param name name of the step
+     * @param previous trace which was current on the thread before this span
+     */
+    OpenppSpan(OpenppTrace trace, String name, OpenppTrace previous) {
+        mTrace = trace;
+        mName = name;
+        mPrevious = previous;
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Marks the step as failed.
+     */
+    public void fail() {
+        mFailed = true;
+    }
+
+    /**
+     * Ends the step and restores the trace which was current on the thread.
+     * This must be called on the thread which started the span.
+     */
+    public void end() {
+        if (mDurationNanos < 0) {
+            mDurationNanos = System.nanoTime() - mStartNanos;
+            OpenppTracer.getInstance().restoreCurrent(mPrevious);
+        }
+    }
+
+    public OpenppTrace getTrace() {
+        return mTrace;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Gets the start time relative to the start of the trace.
+     * @return nanoseconds
+     */
+    public long getOffsetNanos() {
+        return mStartNanos - mTrace.getStartNanos();
+    }
+
+    /**
+     * Gets the duration of the step.
+     * @return nanoseconds, or -1 if not ended yet
+     */
+    public long getDurationNanos() {
+        return mDurationNanos;
+    }
+
+    public boolean isFailed() {
+        return mFailed;
+    }
+
+    @Override
+    public String toString() {
+        return mName + " +" + getOffsetNanos() / 1000000 + "ms " + mDurationNanos / 1000000 + "ms" + (mFailed ? " failed" : "");
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Logical flow of the SDK, such as the startup, made of the timed spans.<p>
+ * The ID of the trace is sent as the correlation header on the requests of the flow.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppTrace {
+    private final String mId;
+    private final String mName;
+    private final long mStartTime;
+    private final long mStartNanos;
+    // Guarded by itself.
+    private final ArrayList<OpenppSpan> mSpans = new ArrayList<>();
+    private volatile long mDurationNanos = -1;
+
+    /**
+     * Constructor
+     * @param id correlation ID
+     * @param name name of the flow
+     */
+    OpenppTrace(String id, String name) {
+        mId = id;
+        mName = name;
+        mStartTime = System.currentTimeMillis();
+        mStartNanos = System.nanoTime();
+    }
+
+    void addSpan(OpenppSpan span) {
+        synchronized (mSpans) {
+            mSpans.add(span);
+        }
+    }
+
+    /**
+     * Ends the trace.
+     * @return true if this call has ended it
+     */
+    synchronized boolean end() {
+        if (mDurationNanos >= 0) {
+            return false;
+        }
+        mDurationNanos = System.nanoTime() - mStartNanos;
+        return true;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Gets the wall clock time the trace started.
+     * @return milliseconds since the epoch
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    long getStartNanos() {
+        return mStartNanos;
+    }
+
+    /**
+     * Gets the duration of the flow.
+     * @return nanoseconds, or -1 if not ended yet
+     */
+    public long getDurationNanos() {
+        return mDurationNanos;
+    }
+
+    /**
+     * Gets the spans in the order they started.
+     * @return copy of the spans
+     */
+    public List<OpenppSpan> getSpans() {
+        synchronized (mSpans) {
+            return new ArrayList<>(mSpans);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mName).append(' ').append(mId).append(' ').append(mDurationNanos / 1000000).append("ms");
+        for (OpenppSpan span : getSpans()) {
+            sb.append("\n  ").append(span);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.trace;
+
+/**
+ * Receives the traces when they end.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public interface OpenppTraceExporter {
+    /**
+     * Called on the thread which ended the trace.
+     * @param trace ended trace
+     */
+    void export(OpenppTrace trace);
+}
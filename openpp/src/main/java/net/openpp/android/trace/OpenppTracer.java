@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.trace;
+
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Opens a trace for each logical flow of the SDK and times its steps.<p>
+ * A flow has at most one open trace. Starting a span on a thread makes the trace current on
+ * the thread until the span ends, and requests sent meanwhile carry its ID in the
+ * {@link #HEADER_CORRELATION_ID} header. Ended traces are passed to the exporter, which keeps them
+ * in memory by default.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppTracer {
+    public static final String HEADER_CORRELATION_ID = "X-Openpp-Correlation-Id";
+    public static final String FLOW_STARTUP = "startup";
+    public static final String FLOW_LOCATION = "location";
+    public static final String FLOW_PUSH = "push";
+
+    // Tag used on log messages.
+    private static final String TAG = "OpenppTracer";
+
+    private static final OpenppTracer mInstance = new OpenppTracer();
+    private static final Random mRandom = new Random();
+
+    private final ConcurrentHashMap<String, OpenppTrace> mActiveTraces = new ConcurrentHashMap<>();
+    private final ThreadLocal<OpenppTrace> mCurrent = new ThreadLocal<>();
+    private volatile OpenppTraceExporter mExporter = new OpenppMemoryTraceExporter();
+    private volatile boolean mEnabled = true;
+
+    /**
+     * Constructor
+     */
+    private OpenppTracer() {
+    }
+
+    /**
+     * Gets the OpenppTracer instance.
+     * @return OpenppTracer instance
+     */
+    public static OpenppTracer getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * Sets whether the traces are recorded. The correlation header is sent either way.
+     * @param enabled true to record
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Sets the exporter which receives the ended traces.
+     * @param exporter exporter
+     */
+    public void setExporter(OpenppTraceExporter exporter) {
+        if (null == exporter) {
+            throw new IllegalArgumentException("Exporter must not be null.");
+        }
+        mExporter = exporter;
+    }
+
+    /**
+     * Gets the exporter which receives the ended traces.
+     * @return exporter
+     */
+    public OpenppTraceExporter getExporter() {
+        return mExporter;
+    }
+
+    /**
+     * Opens a new trace of the flow, ending the one still open.
+     * @param flow name of the flow
+     */
+    public void beginTrace(String flow) {
+        if (!mEnabled) {
+            return;
+        }
+        OpenppTrace old = mActiveTraces.put(flow, new OpenppTrace(newId(), flow));
+        if (null != old) {
+            export(old);
+        }
+    }
+
+    /**
+     * Returns whether the flow has an open trace.
+     * @param flow name of the flow
+     * @return true if open
+     */
+    public boolean isActive(String flow) {
+        return mActiveTraces.containsKey(flow);
+    }
+
+    /**
+     * Starts a span in the open trace of the flow, opening one if there is none.
+     * The trace becomes current on this thread until the span ends.
+     * @param flow name of the flow
+     * @param name name of the step
+     * @return span, to be ended on this thread
+     */
+    public OpenppSpan startSpan(String flow, String name) {
+        OpenppTrace trace = mActiveTraces.get(flow);
+        if (null == trace) {
+            OpenppTrace created = new OpenppTrace(newId(), flow);
+            trace = mEnabled ? mActiveTraces.putIfAbsent(flow, created) : null;
+            if (null == trace) {
+                trace = created;
+            }
+        }
+        OpenppSpan span = new OpenppSpan(trace, name, mCurrent.get());
+        if (mEnabled) {
+            trace.addSpan(span);
+        }
+        mCurrent.set(trace);
+        return span;
+    }
+
+    /**
+     * Ends the open trace of the flow and exports it.
+     * @param flow name of the flow
+     */
+    public void endTrace(String flow) {
+        OpenppTrace trace = mActiveTraces.remove(flow);
+        if (null != trace) {
+            export(trace);
+        }
+    }
+
+    /**
+     * Gets the correlation ID sent on a request from this thread.
+     * @return ID of the current trace, or a new ID if there is none
+     */
+    public String getCorrelationId() {
+        OpenppTrace trace = mCurrent.get();
+        return null == trace ? newId() : trace.getId();
+    }
+
+    void restoreCurrent(OpenppTrace previous) {
+        if (null == previous) {
+            mCurrent.remove();
+        } else {
+            mCurrent.set(previous);
+        }
+    }
+
+    private void export(OpenppTrace trace) {
+        if (!trace.end()) {
+            return;
+        }
+        try {
+            mExporter.export(trace);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to export the trace: " + e);
+        }
+    }
+
+    private static String newId() {
+        return Long.toHexString(mRandom.nextLong());
+    }
+}
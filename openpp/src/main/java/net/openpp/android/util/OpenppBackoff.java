@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.util;
+
+import java.util.Random;
+
+/**
+ * Retry policy with the exponential backoff.<p>
+ * Every delay is randomized between the half and the whole of the exponential backoff,
+ * so that devices which failed at the same time do not retry at the same time.
+ * This class does not depend on the Android framework, so the computation
+ * can be measured on a plain JVM.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppBackoff {
+    public static final long MAX_DELAY_MILLI_SECONDS = 60 * 60 * 1000;
+    // Enough for any delay up to the maximum, and small enough not to overflow.
+    private static final int MAX_SHIFT = 30;
+
+    private static final Random mSharedRandom = new Random();
+
+    private final int mMaxAttempts;
+    private final long mInitialBackoff;
+    private final Random mRandom;
+
+    /**
+     * Constructor
+     * @param maxAttempts maximum number of attempts including the first one
+     * @param initialBackoff longest milliseconds to wait before the first retry
+     */
+    public OpenppBackoff(int maxAttempts, long initialBackoff) {
+        this(maxAttempts, initialBackoff, mSharedRandom);
+    }
+
+    /**
+     * Constructor with the source of the randomness, so that the delays can be reproduced.
+     * @param maxAttempts maximum number of attempts including the first one
+     * @param initialBackoff longest milliseconds to wait before the first retry
+     * @param random source of the randomness
+     */
+    OpenppBackoff(int maxAttempts, long initialBackoff, Random random) {
+        mMaxAttempts = maxAttempts;
+        mInitialBackoff = initialBackoff;
+        mRandom = random;
+    }
+
+    /**
+     * Gets the maximum number of attempts including the first one.
+     * @return maximum number of attempts
+     */
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * Gets the longest time to wait before the first retry.
+     * @return milliseconds
+     */
+    public long getInitialBackoff() {
+        return mInitialBackoff;
+    }
+
+    /**
+     * Returns whether another attempt is allowed after the given one.
+     * @param attempt 1-based number of the failed attempt
+     * @return true if it can be retried
+     */
+    public boolean canRetry(int attempt) {
+        return attempt < mMaxAttempts;
+    }
+
+    /**
+     * Computes the time to wait after the failed attempt.
+     * The backoff doubles on every attempt, up to {@link #MAX_DELAY_MILLI_SECONDS}.
+     * @param attempt 1-based number of the failed attempt
+     * @return milliseconds to wait before the next attempt
+     */
+    public long getDelay(int attempt) {
+        int shift = Math.min(Math.max(attempt - 1, 0), MAX_SHIFT);
+        long initialBackoff = Math.max(0, Math.min(mInitialBackoff, MAX_DELAY_MILLI_SECONDS));
+        long backoff = Math.min(initialBackoff << shift, MAX_DELAY_MILLI_SECONDS);
+        long half = backoff / 2;
+        return half + (long) (mRandom.nextDouble() * (backoff - half));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip helpers for the request and response bodies.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppCompression {
+    public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    public static final String ENCODING_GZIP = "gzip";
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Constructor
+     */
+    private OpenppCompression() {
+    }
+
+    /**
+     * Compresses the bytes with gzip.
+     * @param data bytes to compress
+     * @return compressed bytes
+     * @throws IOException
+     */
+    public static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 32);
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        try {
+            gzip.write(data);
+        } finally {
+            gzip.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads the whole body as a string, decompressing it on the fly if it is gzip encoded.
+     * @param in body stream
+     * @param contentEncoding value of the Content-Encoding header, may be null
+     * @param charset charset of the body
+     * @return body
+     * @throws IOException
+     */
+    public static String readBody(InputStream in, String contentEncoding, String charset) throws IOException {
+        if (ENCODING_GZIP.equalsIgnoreCase(contentEncoding)) {
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        Reader reader = new InputStreamReader(in, charset);
+        try {
+            StringBuilder body = new StringBuilder();
+            char[] buffer = new char[BUFFER_SIZE];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                body.append(buffer, 0, read);
+            }
+            return body.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
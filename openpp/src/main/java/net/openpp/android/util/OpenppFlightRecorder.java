@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size ring buffer of the latest SDK events, to be dumped when an issue is reported.<p>
+ * Recording an event is lock-free and allocates nothing: a writer claims a slot by incrementing
+ * the sequence and stores the primitive fields into parallel arrays. The oldest events are
+ * overwritten. A reader skips the slots being overwritten while it reads them.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppFlightRecorder {
+    /** Response received. a: HTTP status code, b: milliseconds. */
+    public static final int EVENT_REQUEST = 1;
+    /** Request failed to connect. a: 0, b: milliseconds. */
+    public static final int EVENT_REQUEST_FAILED = 2;
+    /** Request is retried. a: failed attempt, b: milliseconds to wait. */
+    public static final int EVENT_RETRY = 3;
+    /** Access token refresh. a: 1 if refreshed, 0 if another request had refreshed it. */
+    public static final int EVENT_TOKEN_REFRESH = 4;
+    /** Push message received. a: 1 if sent as the compact payload, 0 otherwise. */
+    public static final int EVENT_PUSH_RECEIVED = 5;
+    /** Push message of an unsubscribed topic dropped. */
+    public static final int EVENT_PUSH_DROPPED = 6;
+    /** Location fix. a: accuracy in meters, b: time of the fix. */
+    public static final int EVENT_LOCATION_FIX = 7;
+
+    private static final String[] EVENT_NAMES = {
+            "UNKNOWN", "REQUEST", "REQUEST_FAILED", "RETRY", "TOKEN_REFRESH",
+            "PUSH_RECEIVED", "PUSH_DROPPED", "LOCATION_FIX"
+    };
+    private static final int CAPACITY = 512;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final OpenppFlightRecorder mInstance = new OpenppFlightRecorder();
+
+    private final AtomicLong mSequence = new AtomicLong();
+    // Sequence of the event stored in each slot, set after its fields; -1 while being written.
+    private final AtomicLongArray mPublished = new AtomicLongArray(CAPACITY);
+    private final long[] mTimes = new long[CAPACITY];
+    private final int[] mTypes = new int[CAPACITY];
+    private final long[] mArgsA = new long[CAPACITY];
+    private final long[] mArgsB = new long[CAPACITY];
+    private volatile boolean mEnabled = true;
+
+    /**
+     * Constructor
+     */
+    private OpenppFlightRecorder() {
+        for (int i = 0; i < CAPACITY; i++) {
+            mPublished.set(i, -1);
+        }
+    }
+
+    /**
+     * Gets the OpenppFlightRecorder instance.
+     * @return OpenppFlightRecorder instance
+     */
+    public static OpenppFlightRecorder getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * Sets whether the events are recorded.
+     * @param enabled true to record
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Records the event.
+     * @param type one of the EVENT_* constants
+     * @param a first argument of the event
+     * @param b second argument of the event
+     */
+    public void record(int type, long a, long b) {
+        if (!mEnabled) {
+            return;
+        }
+        long sequence = mSequence.getAndIncrement();
+        int slot = (int) (sequence & MASK);
+        mPublished.set(slot, -1);
+        mTimes[slot] = System.currentTimeMillis();
+        mTypes[slot] = type;
+        mArgsA[slot] = a;
+        mArgsB[slot] = b;
+        // The volatile write publishes the fields above to the readers.
+        mPublished.set(slot, sequence);
+    }
+
+    /**
+     * Records the event without arguments.
+     * @param type one of the EVENT_* constants
+     */
+    public void record(int type) {
+        record(type, 0, 0);
+    }
+
+    /**
+     * Dumps the recorded events, oldest first.
+     * @return one line per event
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            dump(sb);
+        } catch (IOException e) {
+            // StringBuilder never throws.
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Dumps the recorded events into the file, oldest first.
+     * @param file file to write
+     * @throws IOException
+     */
+    public void dump(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            dump(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Dumps the recorded events.
+     * @param out destination
+     * @throws IOException
+     */
+    private void dump(Appendable out) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        Date date = new Date();
+        long end = mSequence.get();
+        for (long sequence = Math.max(0, end - CAPACITY); sequence < end; sequence++) {
+            int slot = (int) (sequence & MASK);
+            if (mPublished.get(slot) != sequence) {
+                // Not written yet, or already overwritten.
+                continue;
+            }
+            long time = mTimes[slot];
+            int type = mTypes[slot];
+            long a = mArgsA[slot];
+            long b = mArgsB[slot];
+            if (mPublished.get(slot) != sequence) {
+                // Overwritten while being read.
+                continue;
+            }
+            date.setTime(time);
+            out.append(format.format(date)).append(' ')
+                    .append(type >= 0 && type < EVENT_NAMES.length ? EVENT_NAMES[type] : String.valueOf(type))
+                    .append(" a=").append(String.valueOf(a))
+                    .append(" b=").append(String.valueOf(b)).append('\n');
+        }
+    }
+}
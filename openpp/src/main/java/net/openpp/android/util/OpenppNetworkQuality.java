@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.util;
+
+/**
+ * Passive estimate of the network quality, measured from the SDK's own requests.<p>
+ * The round trip time is smoothed as TCP does (RFC 6298), and the throughput with an
+ * exponentially weighted moving average. The estimate adapts the request timeouts,
+ * the retry policy and how long the queued uploads wait to be batched, so that a poor
+ * network gets fewer, larger and more patient requests.
+ * This class does not depend on the Android framework.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppNetworkQuality {
+
+    /**
+     * Coarse classes of the network quality.
+     */
+    public enum Quality {
+        /** No request has been measured yet. */
+        UNKNOWN,
+        GOOD,
+        MODERATE,
+        POOR
+    }
+
+    private static final double RTT_GAIN = 0.125;
+    private static final double RTT_VARIANCE_GAIN = 0.25;
+    private static final double THROUGHPUT_GAIN = 0.25;
+    private static final long GOOD_RTT_MILLI_SECONDS = 300;
+    private static final long POOR_RTT_MILLI_SECONDS = 1500;
+    private static final double POOR_THROUGHPUT_BYTES_PER_SECOND = 16 * 1024;
+    // Bodies smaller than this mostly measure the round trip, not the throughput.
+    private static final int MIN_THROUGHPUT_SAMPLE_BYTES = 4 * 1024;
+    private static final int MIN_CONNECT_TIMEOUT_MILLI_SECONDS = 5000;
+    private static final int MAX_CONNECT_TIMEOUT_MILLI_SECONDS = 30000;
+    private static final int MIN_READ_TIMEOUT_MILLI_SECONDS = 10000;
+    private static final int MAX_READ_TIMEOUT_MILLI_SECONDS = 60000;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MILLI_SECONDS = 15000;
+    private static final int DEFAULT_READ_TIMEOUT_MILLI_SECONDS = 30000;
+    private static final int POOR_BATCH_DELAY_FACTOR = 4;
+
+    private static final OpenppNetworkQuality mInstance = new OpenppNetworkQuality();
+
+    // The following fields are guarded by this.
+    private double mSmoothedRtt = -1;
+    private double mRttVariance;
+    private double mThroughput = -1;
+
+    /**
+     * Constructor
+     */
+    OpenppNetworkQuality() {
+    }
+
+    /**
+     * Gets the OpenppNetworkQuality instance.
+     * @return OpenppNetworkQuality instance
+     */
+    public static OpenppNetworkQuality getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * Records the time from sending a request until its response headers came.
+     * A request which timed out is recorded with the time it waited.
+     * @param rtt milliseconds
+     */
+    public synchronized void recordRtt(long rtt) {
+        if (rtt < 0) {
+            return;
+        }
+        if (mSmoothedRtt < 0) {
+            mSmoothedRtt = rtt;
+            mRttVariance = rtt / 2.0;
+        } else {
+            mRttVariance = (1 - RTT_VARIANCE_GAIN) * mRttVariance + RTT_VARIANCE_GAIN * Math.abs(mSmoothedRtt - rtt);
+            mSmoothedRtt = (1 - RTT_GAIN) * mSmoothedRtt + RTT_GAIN * rtt;
+        }
+    }
+
+    /**
+     * Records the time to read a response body.
+     * @param bytes size of the body
+     * @param elapsed milliseconds
+     */
+    public synchronized void recordTransfer(long bytes, long elapsed) {
+        if (bytes < MIN_THROUGHPUT_SAMPLE_BYTES || elapsed <= 0) {
+            return;
+        }
+        double sample = bytes * 1000.0 / elapsed;
+        mThroughput = mThroughput < 0 ? sample : (1 - THROUGHPUT_GAIN) * mThroughput + THROUGHPUT_GAIN * sample;
+    }
+
+    /**
+     * Gets the smoothed round trip time.
+     * @return milliseconds, or -1 if not measured yet
+     */
+    public synchronized long getRtt() {
+        return (long) mSmoothedRtt;
+    }
+
+    /**
+     * Gets the smoothed throughput.
+     * @return bytes per second, or -1 if not measured yet
+     */
+    public synchronized long getThroughput() {
+        return (long) mThroughput;
+    }
+
+    /**
+     * Gets the coarse class of the network quality.
+     * @return quality
+     */
+    public synchronized Quality getQuality() {
+        if (mSmoothedRtt < 0) {
+            return Quality.UNKNOWN;
+        }
+        if (mSmoothedRtt >= POOR_RTT_MILLI_SECONDS
+                || (mThroughput >= 0 && mThroughput < POOR_THROUGHPUT_BYTES_PER_SECOND)) {
+            return Quality.POOR;
+        }
+        return mSmoothedRtt < GOOD_RTT_MILLI_SECONDS ? Quality.GOOD : Quality.MODERATE;
+    }
+
+    /**
+     * Gets the connect timeout, which allows for the round trip time and its variance.
+     * @return milliseconds
+     */
+    public synchronized int getConnectTimeout() {
+        if (mSmoothedRtt < 0) {
+            return DEFAULT_CONNECT_TIMEOUT_MILLI_SECONDS;
+        }
+        // A connection takes a round trip or two; allow the retransmission timeout of each.
+        long timeout = (long) (3 * (mSmoothedRtt + 4 * mRttVariance));
+        return (int) clamp(timeout, MIN_CONNECT_TIMEOUT_MILLI_SECONDS, MAX_CONNECT_TIMEOUT_MILLI_SECONDS);
+    }
+
+    /**
+     * Gets the read timeout, which is longer on the slower network.
+     * @return milliseconds
+     */
+    public int getReadTimeout() {
+        int connectTimeout = getConnectTimeout();
+        if (Quality.UNKNOWN == getQuality()) {
+            return DEFAULT_READ_TIMEOUT_MILLI_SECONDS;
+        }
+        return (int) clamp(2L * connectTimeout, MIN_READ_TIMEOUT_MILLI_SECONDS, MAX_READ_TIMEOUT_MILLI_SECONDS);
+    }
+
+    /**
+     * Adapts the retry policy to the network quality.
+     * A poor network is retried fewer times with longer backoffs,
+     * since a request retried too soon is likely to time out again.
+     * The attempts are never raised above the configured ones.
+     * @param backoff configured policy
+     * @return policy to use now
+     */
+    public OpenppBackoff adapt(OpenppBackoff backoff) {
+        if (Quality.POOR != getQuality()) {
+            return backoff;
+        }
+        int maxAttempts = backoff.getMaxAttempts();
+        return new OpenppBackoff(Math.min(maxAttempts, Math.max(1, maxAttempts - 2)), backoff.getInitialBackoff() * 2);
+    }
+
+    /**
+     * Adapts the time the queued uploads wait to be sent together.
+     * On a poor network they wait longer, so that fewer and larger requests are sent.
+     * @param delay configured milliseconds
+     * @return milliseconds to wait now
+     */
+    public long adaptBatchDelay(long delay) {
+        return Quality.POOR == getQuality() ? delay * POOR_BATCH_DELAY_FACTOR : delay;
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory view of the SDK's SharedPreferences.<p>
+ * The preferences are loaded once on a background thread, reads are served from memory,
+ * and writes are batched into a single commit shortly after the last change, except the
+ * writes followed by {@link #flush()}, which are committed at once.<p>
+ * Reads wait for the load to complete, except on the UI thread, which is never blocked:
+ * there, a read made before the load has completed sees only the values written by this process.
+ * Use {@link #isLoaded()} to tell whether the stored values are available.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppPreferenceStore {
+    private static final long FLUSH_DELAY_MILLI_SECONDS = 1000;
+
+    // Tag used on log messages.
+    private static final String TAG = "OpenppPreferenceStore";
+
+    private static final HashMap<String, OpenppPreferenceStore> mStores = new HashMap<>();
+    // Loads and commits of all stores run on this thread one at a time.
+    private static final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private final ConcurrentHashMap<String, Object> mValues = new ConcurrentHashMap<>();
+    // Values changed since the last commit. A null value means the key is removed.
+    private final HashMap<String, Object> mPendingWrites = new HashMap<>();
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+    private volatile SharedPreferences mPrefs;
+    private boolean mFlushScheduled;
+
+    /**
+     * Constructor
+     */
+    private OpenppPreferenceStore() {
+    }
+
+    /**
+     * Gets the store of the preferences, and starts to load them if not yet.
+     * @param context context
+     * @param name name of the preferences
+     * @return store
+     */
+    public static OpenppPreferenceStore getInstance(Context context, String name) {
+        synchronized (mStores) {
+            OpenppPreferenceStore store = mStores.get(name);
+            if (null == store) {
+                store = new OpenppPreferenceStore();
+                store.preloadInBackground(context.getApplicationContext(), name);
+                mStores.put(name, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Loads the preferences on the background thread.
+     * @param context application context
+     * @param name name of the preferences
+     */
+    private void preloadInBackground(final Context context, final String name) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SharedPreferences prefs = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+                Map<String, ?> all = prefs.getAll();
+                synchronized (mPendingWrites) {
+                    for (Map.Entry<String, ?> entry : all.entrySet()) {
+                        // Values written before the load has completed are newer.
+                        if (null != entry.getValue() && !mPendingWrites.containsKey(entry.getKey())) {
+                            mValues.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+                mPrefs = prefs;
+                mLoaded.countDown();
+            }
+        });
+    }
+
+    /**
+     * Returns whether the stored preferences have been loaded.
+     * @return true if loaded
+     */
+    public boolean isLoaded() {
+        return 0 == mLoaded.getCount();
+    }
+
+    /**
+     * Waits until the preferences have been loaded, unless called on the UI thread.
+     */
+    private void awaitLoaded() {
+        if (isLoaded()) {
+            return;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Log.w(TAG, "Read on the UI thread before the preferences have been loaded.");
+            return;
+        }
+        long watch = OpenppWatchdog.begin();
+        try {
+            mLoaded.await();
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Thread interrupted while loading the preferences.");
+            Thread.currentThread().interrupt();
+        }
+        OpenppWatchdog.end("OpenppPreferenceStore.awaitLoaded", watch);
+    }
+
+    /**
+     * Gets the String value from memory.
+     * @param key key
+     * @param defValue value returned if the key does not exist
+     * @return value
+     */
+    public String getString(String key, String defValue) {
+        awaitLoaded();
+        Object value = mValues.get(key);
+        return value instanceof String ? (String) value : defValue;
+    }
+
+    /**
+     * Gets the int value from memory.
+     * @param key key
+     * @param defValue value returned if the key does not exist
+     * @return value
+     */
+    public int getInt(String key, int defValue) {
+        awaitLoaded();
+        Object value = mValues.get(key);
+        return value instanceof Integer ? (Integer) value : defValue;
+    }
+
+    /**
+     * Gets the long value from memory.
+     * @param key key
+     * @param defValue value returned if the key does not exist
+     * @return value
+     */
+    public long getLong(String key, long defValue) {
+        awaitLoaded();
+        Object value = mValues.get(key);
+        return value instanceof Long ? (Long) value : defValue;
+    }
+
+    /**
+     * Gets the float value from memory.
+     * @param key key
+     * @param defValue value returned if the key does not exist
+     * @return value
+     */
+    public float getFloat(String key, float defValue) {
+        awaitLoaded();
+        Object value = mValues.get(key);
+        return value instanceof Float ? (Float) value : defValue;
+    }
+
+    /**
+     * Gets the boolean value from memory.
+     * @param key key
+     * @param defValue value returned if the key does not exist
+     * @return value
+     */
+    public boolean getBoolean(String key, boolean defValue) {
+        awaitLoaded();
+        Object value = mValues.get(key);
+        return value instanceof Boolean ? (Boolean) value : defValue;
+    }
+
+    /**
+     * Sets the String value and schedules the commit.
+     * @param key key
+     * @param value value
+     */
+    public void putString(String key, String value) {
+        put(key, value);
+    }
+
+    /**
+     * Sets the int value and schedules the commit.
+     * @param key key
+     * @param value value
+     */
+    public void putInt(String key, int value) {
+        put(key, value);
+    }
+
+    /**
+     * Sets the long value and schedules the commit.
+     * @param key key
+     * @param value value
+     */
+    public void putLong(String key, long value) {
+        put(key, value);
+    }
+
+    /**
+     * Sets the float value and schedules the commit.
+     * @param key key
+     * @param value value
+     */
+    public void putFloat(String key, float value) {
+        put(key, value);
+    }
+
+    /**
+     * Sets the boolean value and schedules the commit.
+     * @param key key
+     * @param value value
+     */
+    public void putBoolean(String key, boolean value) {
+        put(key, value);
+    }
+
+    /**
+     * Removes the value and schedules the commit.
+     * @param key key
+     */
+    public void remove(String key) {
+        put(key, null);
+    }
+
+    /**
+     * Commits the pending changes now instead of waiting for the batch.
+     */
+    public void flush() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                commitPendingWrites();
+            }
+        });
+    }
+
+    /**
+     * Updates the value in memory and schedules the commit.
+     * @param key key
+     * @param value value, or null to remove
+     */
+    private void put(String key, Object value) {
+        synchronized (mPendingWrites) {
+            if (null == value) {
+                mValues.remove(key);
+            } else {
+                mValues.put(key, value);
+            }
+            mPendingWrites.put(key, value);
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                commitPendingWrites();
+            }
+        }, FLUSH_DELAY_MILLI_SECONDS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the pending changes to the SharedPreferences in a single commit.<p>
+     * <strong>Note:</strong> This method must be called on the store's executor.
+     */
+    private void commitPendingWrites() {
+        HashMap<String, Object> writes;
+        synchronized (mPendingWrites) {
+            mFlushScheduled = false;
+            if (mPendingWrites.isEmpty()) {
+                return;
+            }
+            writes = new HashMap<>(mPendingWrites);
+            mPendingWrites.clear();
+        }
+
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (Map.Entry<String, Object> entry : writes.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (null == value) {
+                editor.remove(key);
+            } else if (value instanceof String) {
+                editor.putString(key, (String) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(key, (Long) value);
+            } else if (value instanceof Float) {
+                editor.putFloat(key, (Float) value);
+            } else if (value instanceof Boolean) {
+                editor.putBoolean(key, (Boolean) value);
+            }
+        }
+        // Commit synchronously; this already runs off the UI thread.
+        if (!editor.commit()) {
+            Log.e(TAG, "Failed to commit the preferences.");
+        }
+    }
+}
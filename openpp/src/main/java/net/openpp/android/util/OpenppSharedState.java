@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Small state file shared by all processes of the application.<p>
+ * The file is memory-mapped, so every process reads the latest state without IPC.
+ * It holds a fixed number of records. Each record is read under a shared file lock and written
+ * under an exclusive one, which also orders the accesses to the mapped memory across the processes,
+ * so a reader never returns a torn record. Each record has a sequence number which changes on
+ * every write, so a parsed value can be reused until the record is written again.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppSharedState {
+    /** Access token of the OAuth. */
+    public static final int RECORD_ACCESS_TOKEN = 0;
+    /** GCM registration of the device. */
+    public static final int RECORD_REGISTRATION = 1;
+
+    private static final String FILE_NAME = "openpp_state";
+    private static final int MAGIC = 0x4f505053;
+    private static final int FORMAT_VERSION = 1;
+    private static final int RECORD_COUNT = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 4096;
+    // Sequence and length precede the data of the record.
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_DATA_SIZE = RECORD_SIZE - RECORD_HEADER_SIZE;
+    private static final int FILE_SIZE = HEADER_SIZE + RECORD_COUNT * RECORD_SIZE;
+    // Operation locks are taken on the bytes past the end of the file, apart from the record locks.
+    private static final int OPERATION_LOCK_OFFSET = FILE_SIZE;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Tag used on log messages.
+    private static final String TAG = "OpenppSharedState";
+
+    private static OpenppSharedState mInstance;
+
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mBuffer;
+    // Used only if the file could not be mapped; the state is then not shared.
+    private final ConcurrentHashMap<Integer, String> mFallback = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     * @param file state file
+     */
+    private OpenppSharedState(File file) {
+        FileChannel channel = null;
+        MappedByteBuffer buffer = null;
+        try {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            FileLock lock = channel.lock();
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+                if (MAGIC != buffer.getInt(0) || FORMAT_VERSION != buffer.getInt(4)) {
+                    // New file, or written by another format; start over.
+                    for (int i = 0; i < FILE_SIZE; i += 4) {
+                        buffer.putInt(i, 0);
+                    }
+                    buffer.putInt(4, FORMAT_VERSION);
+                    buffer.putInt(0, MAGIC);
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to map the state file; the state is not shared: " + e.getMessage());
+            buffer = null;
+        }
+        mChannel = channel;
+        mBuffer = buffer;
+    }
+
+    /**
+     * Gets the OpenppSharedState instance.
+     * @param context context
+     * @return OpenppSharedState instance
+     */
+    public static synchronized OpenppSharedState getInstance(Context context) {
+        if (null == mInstance) {
+            mInstance = new OpenppSharedState(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+        }
+        return mInstance;
+    }
+
+    /**
+     * Gets the version of the record, which changes on every update by any process.
+     * This is read without the lock, so it may lag behind a write in progress; that only
+     * makes the caller read the record once more.
+     * @param record one of the RECORD_* constants
+     * @return version
+     */
+    public int getVersion(int record) {
+        if (null == mBuffer) {
+            String value = mFallback.get(record);
+            return null == value ? 0 : value.hashCode() | 1;
+        }
+        return mBuffer.getInt(offsetOf(record));
+    }
+
+    /**
+     * Reads the record.
+     * @param record one of the RECORD_* constants
+     * @return value, or null if not written
+     * @throws IOException if the record cannot be locked or is broken
+     */
+    public String get(int record) throws IOException {
+        long watch = OpenppWatchdog.begin();
+        try {
+            if (null == mBuffer) {
+                return mFallback.get(record);
+            }
+            int offset = offsetOf(record);
+            // FileLock excludes other processes only; threads of this process are excluded here.
+            synchronized (this) {
+                FileLock lock = mChannel.lock(offset, RECORD_SIZE, true);
+                try {
+                    ByteBuffer view = mBuffer.duplicate();
+                    int length = view.getInt(offset + 4);
+                    if (length < 0 || length > MAX_DATA_SIZE) {
+                        throw new IOException("Broken record " + record + ": " + length + " bytes");
+                    }
+                    byte[] data = new byte[length];
+                    view.position(offset + RECORD_HEADER_SIZE);
+                    view.get(data);
+                    return 0 == length ? null : new String(data, UTF8);
+                } finally {
+                    release(lock);
+                }
+            }
+        } finally {
+            OpenppWatchdog.end("OpenppSharedState.get", watch);
+        }
+    }
+
+    /**
+     * Writes the record.
+     * @param record one of the RECORD_* constants
+     * @param value value, or null to clear
+     * @throws IOException if the record cannot be locked
+     */
+    public void put(int record, String value) throws IOException {
+        long watch = OpenppWatchdog.begin();
+        try {
+            byte[] data = null == value ? new byte[0] : value.getBytes(UTF8);
+            if (data.length > MAX_DATA_SIZE) {
+                throw new IllegalArgumentException("Record is too large: " + data.length);
+            }
+            if (null == mBuffer) {
+                if (null == value) {
+                    mFallback.remove(record);
+                } else {
+                    mFallback.put(record, value);
+                }
+                return;
+            }
+            int offset = offsetOf(record);
+            // FileLock excludes other processes only; threads of this process are excluded here.
+            synchronized (this) {
+                FileLock lock = mChannel.lock(offset, RECORD_SIZE, false);
+                try {
+                    ByteBuffer view = mBuffer.duplicate();
+                    view.putInt(offset + 4, data.length);
+                    view.position(offset + RECORD_HEADER_SIZE);
+                    view.put(data);
+                    // Written last; a reader which sees the new version finds the new data.
+                    view.putInt(offset, view.getInt(offset) + 2);
+                } finally {
+                    release(lock);
+                }
+            }
+        } finally {
+            OpenppWatchdog.end("OpenppSharedState.put", watch);
+        }
+    }
+
+    /**
+     * Takes the lock of an operation on the record, such as refreshing the access token,
+     * which must not run in two processes at once. The lock does not block the reads and writes.
+     * Threads of the same process must be excluded by the caller.
+     * @param record one of the RECORD_* constants
+     * @return lock to be released by {@link #release(FileLock)}, or null if the state is not shared
+     */
+    public FileLock lockOperation(int record) {
+        if (null == mChannel || null == mBuffer) {
+            return null;
+        }
+        try {
+            return mChannel.lock(OPERATION_LOCK_OFFSET + record, 1, false);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to lock the operation on " + record + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Releases the lock.
+     * @param lock lock, may be null
+     */
+    public static void release(FileLock lock) {
+        if (null == lock) {
+            return;
+        }
+        try {
+            lock.release();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to release the lock: " + e.getMessage());
+        }
+    }
+
+    private static int offsetOf(int record) {
+        if (record < 0 || record >= RECORD_COUNT) {
+            throw new IllegalArgumentException("Unknown record: " + record);
+        }
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+}
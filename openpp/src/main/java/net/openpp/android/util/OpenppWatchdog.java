@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.util;
+
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Debug instrumentation which times the SDK's entry points and I/O calls.<p>
+ * Operations run on the main thread longer than the threshold are logged, and
+ * {@link #getReport()} summarizes the time each operation took on the main thread and
+ * elsewhere. It is disabled by default; enable it only in debug builds, e.g.
+ * {@code OpenppWatchdog.setEnabled(BuildConfig.DEBUG)} of the application.
+ * While disabled, the instrumented calls cost a single volatile read.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppWatchdog {
+    public static final long DEFAULT_THRESHOLD_MILLI_SECONDS = 16;
+
+    // Tag used on log messages.
+    private static final String TAG = "OpenppWatchdog";
+
+    private static volatile boolean mEnabled;
+    private static volatile long mThresholdNanos = DEFAULT_THRESHOLD_MILLI_SECONDS * 1000000;
+    private static final ConcurrentHashMap<String, Stat> mStats = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     */
+    private OpenppWatchdog() {
+    }
+
+    /**
+     * Sets whether the operations are timed.
+     * @param enabled true to time
+     */
+    public static void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Sets the time over which an operation on the main thread is logged.
+     * @param threshold milliseconds
+     */
+    public static void setThreshold(long threshold) {
+        mThresholdNanos = threshold * 1000000;
+    }
+
+    /**
+     * Starts timing an operation.
+     * @return token to be passed to {@link #end(String, long)}
+     */
+    public static long begin() {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Ends timing the operation.
+     * @param name name of the operation
+     * @param token value returned by {@link #begin()}
+     */
+    public static void end(String name, long token) {
+        if (0 == token) {
+            return;
+        }
+        long elapsed = System.nanoTime() - token;
+        boolean main = Looper.myLooper() == Looper.getMainLooper();
+        boolean slow = main && elapsed > mThresholdNanos;
+        Stat stat = mStats.get(name);
+        if (null == stat) {
+            mStats.putIfAbsent(name, new Stat(name));
+            stat = mStats.get(name);
+        }
+        stat.add(elapsed, main, slow);
+        if (slow) {
+            Log.w(TAG, name + " took " + elapsed / 1000000 + " ms on the main thread.");
+        }
+    }
+
+    /**
+     * Summarizes the timed operations, longest total on the main thread first.
+     * @return report
+     */
+    public static String getReport() {
+        List<Stat> stats = new ArrayList<>(mStats.values());
+        Collections.sort(stats, new Comparator<Stat>() {
+            @Override
+            public int compare(Stat lhs, Stat rhs) {
+                long l = lhs.getMainNanos();
+                long r = rhs.getMainNanos();
+                return l > r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        sb.append("operation: calls (main/slow) main total ms, other total ms, max ms\n");
+        for (Stat stat : stats) {
+            sb.append(stat).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Forgets the timed operations.
+     */
+    public static void reset() {
+        mStats.clear();
+    }
+
+    /**
+     * Timings of an operation.
+     */
+    private static final class Stat {
+        private final String mName;
+        // The following fields are guarded by this.
+        private long mCount;
+        private long mMainCount;
+        private long mSlowCount;
+        private long mMainNanos;
+        private long mOtherNanos;
+        private long mMaxNanos;
+
+        Stat(String name) {
+            mName = name;
+        }
+
+        synchronized void add(long elapsed, boolean main, boolean slow) {
+            mCount++;
+            if (main) {
+                mMainCount++;
+                mMainNanos += elapsed;
+            } else {
+                mOtherNanos += elapsed;
+            }
+            if (slow) {
+                mSlowCount++;
+            }
+            mMaxNanos = Math.max(mMaxNanos, elapsed);
+        }
+
+        synchronized long getMainNanos() {
+            return mMainNanos;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.US, "%s: %d (%d/%d) %.1f, %.1f, %.1f", mName, mCount, mMainCount, mSlowCount,
+                    mMainNanos / 1e6, mOtherNanos / 1e6, mMaxNanos / 1e6);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Report of a load test or a benchmark, printed and written as JSON
+ * so that the runs can be compared to find regressions.<p>
+ * The JSON is written into the directory of the {@code openpp.report.dir} system property,
+ * {@code build/reports/openpp} by default.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppLoadReport {
+    public static final String PROPERTY_REPORT_DIR = "openpp.report.dir";
+    private static final String DEFAULT_REPORT_DIR = "build/reports/openpp";
+    private static final double[] PERCENTILES = {50, 95, 99};
+
+    private final String mName;
+    private final LinkedHashMap<String, Object> mParameters = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Object> mMetrics = new LinkedHashMap<>();
+    // Guarded by itself. Nanoseconds of each sample by the series name.
+    private final LinkedHashMap<String, List<Long>> mLatencies = new LinkedHashMap<>();
+
+    /**
+     * Constructor
+     * @param name name of the report, used as the file name
+     */
+    public OpenppLoadReport(String name) {
+        mName = name;
+    }
+
+    public synchronized void putParameter(String name, Object value) {
+        mParameters.put(name, value);
+    }
+
+    public synchronized void putMetric(String name, Object value) {
+        mMetrics.put(name, value);
+    }
+
+    /**
+     * Adds the latency sample to the series.
+     * @param series series name
+     * @param nanos latency in nanoseconds
+     */
+    public void addLatency(String series, long nanos) {
+        synchronized (mLatencies) {
+            List<Long> samples = mLatencies.get(series);
+            if (null == samples) {
+                samples = new ArrayList<>();
+                mLatencies.put(series, samples);
+            }
+            samples.add(nanos);
+        }
+    }
+
+    /**
+     * Gets the percentile of the series by the nearest rank.
+     * @param series series name
+     * @param percentile from 0 to 100
+     * @return milliseconds, or 0 if the series has no sample
+     */
+    public double getPercentile(String series, double percentile) {
+        List<Long> sorted = getSorted(series);
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sorted.size());
+        return sorted.get(Math.max(0, rank - 1)) / 1e6;
+    }
+
+    /**
+     * Gets the number of the samples in the series.
+     * @param series series name
+     * @return count
+     */
+    public int getCount(String series) {
+        synchronized (mLatencies) {
+            List<Long> samples = mLatencies.get(series);
+            return null == samples ? 0 : samples.size();
+        }
+    }
+
+    /**
+     * Builds the JSON of the report.
+     * @return JSON
+     */
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("name", mName);
+        json.put("parameters", toJson(mParameters));
+        json.put("metrics", toJson(mMetrics));
+        JSONObject latencies = new JSONObject();
+        for (String series : getSeries()) {
+            JSONObject summary = new JSONObject();
+            summary.put("count", getCount(series));
+            for (double percentile : PERCENTILES) {
+                summary.put("p" + (int) percentile + "_ms", getPercentile(series, percentile));
+            }
+            summary.put("max_ms", getPercentile(series, 100));
+            latencies.put(series, summary);
+        }
+        json.put("latencies", latencies);
+        return json;
+    }
+
+    /**
+     * Prints the report and writes its JSON into the report directory.
+     * @return file written
+     */
+    public File write() throws IOException, JSONException {
+        String json = toJson().toString(2);
+        System.out.println(this);
+        File dir = new File(System.getProperty(PROPERTY_REPORT_DIR, DEFAULT_REPORT_DIR));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File file = new File(dir, mName + ".json");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(json.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder("== ").append(mName).append(" ==\n");
+        for (Map.Entry<String, Object> entry : mParameters.entrySet()) {
+            text.append(String.format(Locale.US, "  %-32s %s%n", entry.getKey(), entry.getValue()));
+        }
+        for (Map.Entry<String, Object> entry : mMetrics.entrySet()) {
+            Object value = entry.getValue();
+            text.append(String.format(Locale.US, "  %-32s %s%n", entry.getKey(),
+                    value instanceof Double ? String.format(Locale.US, "%.3f", value) : value));
+        }
+        for (String series : getSeries()) {
+            text.append(String.format(Locale.US, "  %-32s n=%d p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms%n",
+                    series, getCount(series), getPercentile(series, 50), getPercentile(series, 95),
+                    getPercentile(series, 99), getPercentile(series, 100)));
+        }
+        return text.toString();
+    }
+
+    private List<String> getSeries() {
+        synchronized (mLatencies) {
+            return new ArrayList<>(mLatencies.keySet());
+        }
+    }
+
+    private List<Long> getSorted(String series) {
+        List<Long> sorted;
+        synchronized (mLatencies) {
+            List<Long> samples = mLatencies.get(series);
+            sorted = null == samples ? new ArrayList<Long>() : new ArrayList<>(samples);
+        }
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    private static JSONObject toJson(Map<String, Object> values) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            json.put(entry.getKey(), entry.getValue());
+        }
+        return json;
+    }
+}
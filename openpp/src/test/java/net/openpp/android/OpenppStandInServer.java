@@ -0,0 +1,517 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the Openpp backend, used by the tests to drive the SDK over real HTTP.<p>
+ * It serves the token, profile, registration, batch, content and configuration endpoints, and can inject
+ * latency, dropped connections and token expiry. Every request is counted per endpoint,
+ * and the bodies are kept so that the tests can inspect what the SDK sent.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppStandInServer {
+    public static final String TOKEN_PATH = "/oauth/v2/token";
+    public static final String USER_INFO_PATH = "/api/user/me";
+    public static final String REGISTRATION_PATH = "/api/push/device/android/register";
+    public static final String CONFIG_PATH = "/api/sdk/android/config";
+    public static final String BATCH_PATH = "/api/batch";
+    // Content referenced by the push messages.
+    public static final String CONTENT_PATH = "/api/push/content";
+    // Batch status which leaves the operation without a result.
+    public static final int BATCH_NO_RESULT = 0;
+    public static final String UID = "stand-in-uid";
+    private static final String PARAM_ACCESS_TOKEN = "access_token";
+    private static final String PARAM_GRANT_TYPE = "grant_type";
+    private static final String PARAM_REFRESH_TOKEN = "refresh_token";
+    private static final String PARAM_FIELDS = "fields";
+    private static final String CHARSET_UTF8 = "UTF-8";
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final ConcurrentHashMap<String, AtomicLong> mRequests = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> mDropped = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, List<String>> mBodies = new ConcurrentHashMap<>();
+    private final AtomicLong mRefreshes = new AtomicLong();
+    private final AtomicLong mExpirations = new AtomicLong();
+    private volatile long mLatency;
+    private volatile double mErrorRate;
+    private volatile double mTokenExpiryRate;
+    private volatile String mConfig = "{}";
+    private volatile String mProfile = "{\"uid\":\"" + UID + "\"}";
+    private final List<String> mProjections = Collections.synchronizedList(new ArrayList<String>());
+    private final ConcurrentHashMap<String, Integer> mBatchStatuses = new ConcurrentHashMap<>();
+    private volatile String mBatchResponse;
+    // Guarded by this.
+    private final Random mRandom = new Random(1);
+    private String mAccessToken;
+    private String mRefreshToken;
+    private int mTokenGeneration;
+
+    /**
+     * Constructor, which binds a free port of the loopback interface.
+     * @throws IOException
+     */
+    public OpenppStandInServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        mServer.setExecutor(mExecutor);
+        mServer.createContext(TOKEN_PATH, new Endpoint() {
+            @Override
+            Reply serve(HttpExchange exchange, String body) throws IOException {
+                Map<String, String> params = parseForm(body);
+                if (PARAM_REFRESH_TOKEN.equals(params.get(PARAM_GRANT_TYPE))) {
+                    return refresh(params.get(PARAM_REFRESH_TOKEN));
+                }
+                // The authorization code grant.
+                return new Reply(200, issueTokenResponse());
+            }
+        });
+        mServer.createContext(USER_INFO_PATH, new Resource() {
+            @Override
+            Reply serveAuthorized(HttpExchange exchange, String body) throws IOException {
+                // Like an older server, the projection is recorded but the whole profile is answered.
+                mProjections.add(parseForm(exchange.getRequestURI().getRawQuery()).get(PARAM_FIELDS));
+                return new Reply(200, mProfile);
+            }
+        });
+        mServer.createContext(REGISTRATION_PATH, new Resource() {
+            @Override
+            Reply serveAuthorized(HttpExchange exchange, String body) {
+                return new Reply(200, "{}");
+            }
+        });
+        mServer.createContext(BATCH_PATH, new Resource() {
+            @Override
+            Reply serveAuthorized(HttpExchange exchange, String body) throws IOException {
+                return serveBatch(body);
+            }
+        });
+        mServer.createContext(CONTENT_PATH, new Resource() {
+            @Override
+            Reply serveAuthorized(HttpExchange exchange, String body) {
+                return new Reply(200, "{\"content\":\"" + exchange.getRequestURI().getPath() + "\"}");
+            }
+        });
+        mServer.createContext(CONFIG_PATH, new Resource() {
+            @Override
+            Reply serveAuthorized(HttpExchange exchange, String body) {
+                exchange.getResponseHeaders().add("Cache-Control", "max-age=3600");
+                return new Reply(200, mConfig);
+            }
+        });
+    }
+
+    public void start() {
+        mServer.start();
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Gets the host and port, to be set as the server names of the SDK.
+     * @return server name
+     */
+    public String getServerName() {
+        return "localhost:" + mServer.getAddress().getPort();
+    }
+
+    /**
+     * Sets the time spent on every request before it is answered.
+     * @param latency milliseconds
+     */
+    public void setLatency(long latency) {
+        mLatency = latency;
+    }
+
+    /**
+     * Sets the rate of the requests whose connection is closed without a response,
+     * which the SDK sees as a connection failure.
+     * @param errorRate from 0 to 1
+     */
+    public void setErrorRate(double errorRate) {
+        mErrorRate = errorRate;
+    }
+
+    /**
+     * Sets the rate of the authorized requests which expire the access token they carry.
+     * An expired token is rejected with 401 until it is refreshed.
+     * @param tokenExpiryRate from 0 to 1
+     */
+    public void setTokenExpiryRate(double tokenExpiryRate) {
+        mTokenExpiryRate = tokenExpiryRate;
+    }
+
+    /**
+     * Sets the document served as the SDK configuration.
+     * @param config JSON
+     */
+    public void setConfig(String config) {
+        mConfig = config;
+    }
+
+    /**
+     * Sets the profile served by the user info endpoint, whatever fields are requested.
+     * @param profile JSON
+     */
+    public void setProfile(String profile) {
+        mProfile = profile;
+    }
+
+    /**
+     * Gets the {@code fields} projections requested from the user info endpoint, in the order received.
+     * @return projections, null for a request without one
+     */
+    public List<String> getProjections() {
+        synchronized (mProjections) {
+            return new ArrayList<>(mProjections);
+        }
+    }
+
+    /**
+     * Sets the status the batch endpoint answers for the operation. Operations succeed with 200 by default.
+     * @param id ID of the operation
+     * @param status HTTP status code, or {@link #BATCH_NO_RESULT} to leave out its result
+     */
+    public void setBatchStatus(String id, int status) {
+        mBatchStatuses.put(id, status);
+    }
+
+    /**
+     * Sets the body the batch endpoint answers with instead of the results, such as a malformed one.
+     * @param response body, or null to answer with the results
+     */
+    public void setBatchResponse(String response) {
+        mBatchResponse = response;
+    }
+
+    /**
+     * Issues a new access token, which replaces the valid one.
+     * @return token response as the token endpoint returns it
+     */
+    public synchronized String issueTokenResponse() {
+        mTokenGeneration++;
+        mAccessToken = "access-" + mTokenGeneration;
+        mRefreshToken = "refresh-" + mTokenGeneration;
+        return "{\"access_token\":\"" + mAccessToken + "\",\"token_type\":\"bearer\",\"expires_in\":3600,"
+                + "\"refresh_token\":\"" + mRefreshToken + "\"}";
+    }
+
+    /**
+     * Expires the valid access token, so that it is rejected until it is refreshed.
+     */
+    public synchronized void expireToken() {
+        mAccessToken = null;
+        mExpirations.incrementAndGet();
+    }
+
+    /**
+     * Gets the number of the requests received by the endpoint, including the dropped ones.
+     * @param path path of the endpoint
+     * @return count
+     */
+    public long getRequestCount(String path) {
+        return get(mRequests, path);
+    }
+
+    /**
+     * Gets the number of the requests of the endpoint dropped by the error injection.
+     * @param path path of the endpoint
+     * @return count
+     */
+    public long getDroppedCount(String path) {
+        return get(mDropped, path);
+    }
+
+    /**
+     * Gets the number of the access tokens refreshed.
+     * @return count
+     */
+    public long getRefreshCount() {
+        return mRefreshes.get();
+    }
+
+    /**
+     * Gets the number of the access tokens expired by the injection.
+     * @return count
+     */
+    public long getExpirationCount() {
+        return mExpirations.get();
+    }
+
+    /**
+     * Gets the bodies of the requests answered by the endpoint, in the order received.
+     * @param path path of the endpoint
+     * @return bodies
+     */
+    public List<String> getBodies(String path) {
+        List<String> bodies = mBodies.get(path);
+        if (null == bodies) {
+            return Collections.emptyList();
+        }
+        synchronized (bodies) {
+            return new ArrayList<>(bodies);
+        }
+    }
+
+    /**
+     * Parses the form encoded body.
+     * @param body body
+     * @return parameters
+     */
+    public static Map<String, String> parseForm(String body) throws IOException {
+        HashMap<String, String> params = new HashMap<>();
+        if (null == body || body.isEmpty()) {
+            return params;
+        }
+        for (String pair : body.split("&")) {
+            int index = pair.indexOf('=');
+            if (index < 0) {
+                params.put(URLDecoder.decode(pair, CHARSET_UTF8), "");
+            } else {
+                params.put(URLDecoder.decode(pair.substring(0, index), CHARSET_UTF8),
+                        URLDecoder.decode(pair.substring(index + 1), CHARSET_UTF8));
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Gets the parameters of each operation posted to the batch endpoint, in the order received.
+     * @param id ID of the operation
+     * @return parameters
+     * @throws IOException if a posted body is not a batch
+     */
+    public List<Map<String, String>> getBatchParams(String id) throws IOException {
+        List<Map<String, String>> params = new ArrayList<>();
+        try {
+            for (String body : getBodies(BATCH_PATH)) {
+                JSONArray operations = new JSONObject(body).getJSONArray("operations");
+                for (int i = 0; i < operations.length(); i++) {
+                    JSONObject operation = operations.getJSONObject(i);
+                    if (!id.equals(operation.getString("id"))) {
+                        continue;
+                    }
+                    HashMap<String, String> values = new HashMap<>();
+                    JSONObject obj = operation.optJSONObject("params");
+                    if (null != obj) {
+                        JSONArray names = obj.names();
+                        for (int j = 0; null != names && j < names.length(); j++) {
+                            values.put(names.getString(j), obj.getString(names.getString(j)));
+                        }
+                    }
+                    params.add(values);
+                }
+            }
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+        return params;
+    }
+
+    /**
+     * Answers each operation of the batch with the status set for it.
+     * @param body posted batch
+     * @return reply
+     */
+    private Reply serveBatch(String body) throws IOException {
+        String response = mBatchResponse;
+        if (null != response) {
+            return new Reply(200, response);
+        }
+        try {
+            JSONArray operations = new JSONObject(body).getJSONArray("operations");
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < operations.length(); i++) {
+                String id = operations.getJSONObject(i).getString("id");
+                Integer status = mBatchStatuses.get(id);
+                if (null == status) {
+                    status = 200;
+                }
+                if (BATCH_NO_RESULT == status) {
+                    continue;
+                }
+                results.put(new JSONObject().put("id", id).put("status", status).put("body", new JSONObject()));
+            }
+            return new Reply(200, new JSONObject().put("results", results).toString());
+        } catch (JSONException e) {
+            return new Reply(400, "{\"error\":\"invalid_request\"}");
+        }
+    }
+
+    /**
+     * Refreshes the access token, accepting only the latest refresh token.
+     * @param refreshToken refresh token sent
+     * @return reply
+     */
+    private synchronized Reply refresh(String refreshToken) {
+        if (null == refreshToken || !refreshToken.equals(mRefreshToken)) {
+            return new Reply(400, "{\"error\":\"invalid_grant\"}");
+        }
+        mRefreshes.incrementAndGet();
+        return new Reply(200, issueTokenResponse());
+    }
+
+    /**
+     * Checks the access token, and expires it at the injected rate.
+     * @param query query string of the request
+     * @return true if authorized
+     */
+    private synchronized boolean authorize(String query) throws IOException {
+        String accessToken = parseForm(query).get(PARAM_ACCESS_TOKEN);
+        if (null == accessToken || !accessToken.equals(mAccessToken)) {
+            return false;
+        }
+        if (mRandom.nextDouble() < mTokenExpiryRate) {
+            mAccessToken = null;
+            mExpirations.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized boolean shouldDrop() {
+        return mRandom.nextDouble() < mErrorRate;
+    }
+
+    private static long get(ConcurrentHashMap<String, AtomicLong> counters, String path) {
+        AtomicLong counter = counters.get(path);
+        return null == counter ? 0 : counter.get();
+    }
+
+    private static void increment(ConcurrentHashMap<String, AtomicLong> counters, String path) {
+        AtomicLong counter = counters.get(path);
+        if (null == counter) {
+            counters.putIfAbsent(path, new AtomicLong());
+            counter = counters.get(path);
+        }
+        counter.incrementAndGet();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString(CHARSET_UTF8);
+    }
+
+    /**
+     * Status code and body of a response.
+     */
+    static final class Reply {
+        final int mCode;
+        final String mBody;
+
+        Reply(int code, String body) {
+            mCode = code;
+            mBody = body;
+        }
+    }
+
+    /**
+     * Endpoint which counts the requests and injects the latency and the errors.
+     */
+    abstract class Endpoint implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getHttpContext().getPath();
+            increment(mRequests, path);
+            try {
+                String body = read(exchange.getRequestBody());
+                long latency = mLatency;
+                if (latency > 0) {
+                    try {
+                        Thread.sleep(latency);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (shouldDrop()) {
+                    // Closing the exchange before the response headers drops the connection.
+                    increment(mDropped, path);
+                    return;
+                }
+                List<String> bodies = mBodies.get(path);
+                if (null == bodies) {
+                    mBodies.putIfAbsent(path, Collections.synchronizedList(new ArrayList<String>()));
+                    bodies = mBodies.get(path);
+                }
+                bodies.add(body);
+
+                Reply reply = serve(exchange, body);
+                byte[] bytes = reply.mBody.getBytes(CHARSET_UTF8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                // No keep-alive, so that a dropped connection is never retried silently by HttpURLConnection.
+                exchange.getResponseHeaders().add("Connection", "close");
+                exchange.sendResponseHeaders(reply.mCode, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        abstract Reply serve(HttpExchange exchange, String body) throws IOException;
+    }
+
+    /**
+     * Endpoint of the resource server, which requires a valid access token.
+     */
+    abstract class Resource extends Endpoint {
+
+        @Override
+        Reply serve(HttpExchange exchange, String body) throws IOException {
+            if (!authorize(exchange.getRequestURI().getRawQuery())) {
+                return new Reply(401, "{\"error\":\"invalid_token\"}");
+            }
+            return serveAuthorized(exchange, body);
+        }
+
+        abstract Reply serveAuthorized(HttpExchange exchange, String body) throws IOException;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.auth;
+
+import net.openpp.android.BuildConfig;
+import net.openpp.android.job.OpenppJobScheduler;
+import net.openpp.android.location.OpenppLocationManager;
+import net.openpp.android.push.OpenppPushManager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress test of the manager singletons and the configuration snapshot under concurrent use.
+ *
+ * @author shiroko@webware.co.jp
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OpenppAuthManagerConcurrencyTest {
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 2000;
+
+    @Test
+    public void getInstanceReturnsTheSameInstanceOnEveryThread() throws Exception {
+        List<Callable<Object[]>> tasks = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            tasks.add(new Callable<Object[]>() {
+                @Override
+                public Object[] call() {
+                    return new Object[] {
+                            OpenppAuthManager.getInstance(),
+                            OpenppPushManager.getInstance(),
+                            OpenppLocationManager.getInstance(),
+                            OpenppJobScheduler.getInstance()
+                    };
+                }
+            });
+        }
+        List<Object[]> results = runConcurrently(tasks);
+        Object[] first = results.get(0);
+        for (Object[] result : results) {
+            for (int i = 0; i < first.length; i++) {
+                assertSame(first[i], result[i]);
+            }
+        }
+    }
+
+    @Test
+    public void concurrentSettersDoNotLoseUpdates() throws Exception {
+        final OpenppAuthManager manager = OpenppAuthManager.getInstance();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    manager.setAuthServerName("auth" + i + ".example.com");
+                }
+                return null;
+            }
+        });
+        tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    manager.setResourceServerName("resource" + i + ".example.com");
+                }
+                return null;
+            }
+        });
+        tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    manager.setApiKey("key" + i);
+                    manager.setApiSecret("secret" + i);
+                }
+                return null;
+            }
+        });
+        // Readers must always see the endpoints of a single snapshot.
+        for (int reader = 0; reader < THREADS - 3; reader++) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        OpenppEndpoints endpoints = manager.getEndpoints();
+                        assertEquals(endpoints.getResourceServerUrl() + OpenppAuthManager.API_USER_INFO_PATH,
+                                endpoints.getUserInfoUrl());
+                        assertEquals(endpoints.getAuthServerUrl() + OpenppEndpoints.ACCESS_TOKEN_PATH,
+                                endpoints.getAccessTokenUrl());
+                        assertTrue(endpoints.getAuthorizeUrlPrefix().startsWith(endpoints.getAuthServerUrl()));
+                    }
+                    return null;
+                }
+            });
+        }
+        runConcurrently(tasks);
+
+        int last = ITERATIONS - 1;
+        assertEquals("auth" + last + ".example.com", manager.getAuthServerName());
+        assertEquals("resource" + last + ".example.com", manager.getResourceServerName());
+        assertEquals(OpenppAuthManager.SCHEME + "://auth" + last + ".example.com",
+                manager.getEndpoints().getAuthServerUrl());
+        assertEquals(OpenppAuthManager.SCHEME + "://resource" + last + ".example.com",
+                manager.getEndpoints().getResourceServerUrl());
+    }
+
+    @Test
+    public void serviceIsRebuiltForTheLatestConfiguration() throws Exception {
+        final OpenppAuthManager manager = OpenppAuthManager.getInstance();
+        manager.attach(RuntimeEnvironment.application);
+        final String prefix = "service-key-" + System.nanoTime() + "-";
+        List<Callable<Void>> tasks = new ArrayList<>();
+        tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    manager.setApiKey(prefix + i);
+                }
+                return null;
+            }
+        });
+        // Services built while the key is being replaced must not outlive the configuration they were built from.
+        for (int reader = 0; reader < THREADS - 1; reader++) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        manager.createOAuthService();
+                    }
+                    return null;
+                }
+            });
+        }
+        runConcurrently(tasks);
+
+        String url = manager.createOAuthService().getAuthorizationUrl(null);
+        assertTrue(url, url.contains(prefix + (ITERATIONS - 1) + "&"));
+    }
+
+    /**
+     * Starts the tasks at the same time on their own threads and waits for all of them.
+     * @param tasks tasks
+     * @return results in the order of the tasks
+     * @throws Exception thrown by any of the tasks
+     */
+    private static <T> List<T> runConcurrently(List<Callable<T>> tasks) throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(tasks.size());
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for (final Callable<T> task : tasks) {
+                futures.add(executor.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        barrier.await();
+                        return task.call();
+                    }
+                }));
+            }
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get(30, TimeUnit.SECONDS));
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
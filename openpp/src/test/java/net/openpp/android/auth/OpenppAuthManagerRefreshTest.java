@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.auth;
+
+import net.openpp.android.BuildConfig;
+import net.openpp.android.OpenppStandInServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.scribe.model.Response;
+import org.scribe.model.Verb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that concurrent requests rejected with 401 share a single token refresh.
+ *
+ * @author shiroko@webware.co.jp
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OpenppAuthManagerRefreshTest {
+    private static final int THREADS = 8;
+
+    private OpenppStandInServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new OpenppStandInServer();
+        mServer.start();
+        OpenppAuthTestSupport.connect(RuntimeEnvironment.application, mServer, THREADS * 2);
+        mServer.expireToken();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void concurrentRequestsRefreshTheTokenOnce() throws Exception {
+        final String url = OpenppAuthManager.getInstance().getEndpoints().getUserInfoUrl();
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    barrier.await();
+                    Response response = OpenppAuthManager.getInstance().sendOAuthRequest(
+                            OpenppRateLimiter.EndpointClass.USER, Verb.GET, url, null);
+                    return response.getCode();
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (Callable<Integer> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<Integer> future : futures) {
+                assertEquals(200, (int) future.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, mServer.getRefreshCount());
+    }
+}
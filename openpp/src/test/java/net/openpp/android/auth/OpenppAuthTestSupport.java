@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.auth;
+
+import android.content.Context;
+
+import com.google.gson.Gson;
+
+import net.openpp.android.OpenppStandInServer;
+import net.openpp.android.util.OpenppSharedState;
+
+import org.scribe.model.Token;
+
+import java.io.IOException;
+
+/**
+ * Sets up the authorization state of the SDK for the tests of the other packages.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public final class OpenppAuthTestSupport {
+
+    private OpenppAuthTestSupport() {
+    }
+
+    /**
+     * Points the SDK at the stand-in server, as if the authorization had completed with it.
+     * @param context context
+     * @param server stand-in server
+     * @param limit requests each endpoint class may send in a burst
+     * @throws IOException if the access token cannot be stored
+     */
+    public static void connect(Context context, OpenppStandInServer server, int limit) throws IOException {
+        OpenppAuthManager manager = OpenppAuthManager.getInstance();
+        manager.attach(context);
+        manager.setApiKey("key");
+        manager.setApiSecret("secret");
+        manager.setAuthServerName(server.getServerName());
+        manager.setResourceServerName(server.getServerName());
+        for (OpenppRateLimiter.EndpointClass endpointClass : OpenppRateLimiter.EndpointClass.values()) {
+            manager.getRateLimiter().setLimit(endpointClass, limit, 1);
+        }
+        Token token = new OpenppOAuthApi().getAccessTokenExtractor().extract(server.issueTokenResponse());
+        OpenppSharedState.getInstance(context).put(OpenppSharedState.RECORD_ACCESS_TOKEN, new Gson().toJson(token));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.auth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the endpoint URLs built from the server names.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppEndpointsTest {
+    private static final String AUTH_SERVER = "auth.example.com";
+    private static final String RESOURCE_SERVER = "api.example.com:8080";
+
+    private final OpenppEndpoints mEndpoints = new OpenppEndpoints(AUTH_SERVER, RESOURCE_SERVER);
+
+    @Test
+    public void serverUrlsHaveTheScheme() {
+        assertEquals(OpenppAuthManager.SCHEME + "://auth.example.com", mEndpoints.getAuthServerUrl());
+        assertEquals(OpenppAuthManager.SCHEME + "://api.example.com:8080", mEndpoints.getResourceServerUrl());
+    }
+
+    @Test
+    public void authorizationUrlEndsWithTheClientIdParameter() {
+        assertEquals(OpenppAuthManager.SCHEME + "://auth.example.com/oauth/v2/auth?response_type=code&client_id=",
+                mEndpoints.getAuthorizeUrlPrefix());
+    }
+
+    @Test
+    public void tokenUrlsAreOnTheAuthorizationServer() {
+        assertEquals(OpenppAuthManager.SCHEME + "://auth.example.com/oauth/v2/token", mEndpoints.getAccessTokenUrl());
+        assertEquals(OpenppAuthManager.SCHEME + "://auth.example.com/oauth/v2/token?grant_type=authorization_code",
+                mEndpoints.getAccessTokenUrlWithGrantType());
+    }
+
+    @Test
+    public void userInfoUrlIsOnTheResourceServer() {
+        assertEquals(OpenppAuthManager.SCHEME + "://api.example.com:8080" + OpenppAuthManager.API_USER_INFO_PATH,
+                mEndpoints.getUserInfoUrl());
+    }
+
+    @Test
+    public void urlsAreTheSameAsConcatenatedOnEachRequest() {
+        // The catalog replaced the URLs assembled for each request; they must not change.
+        String authServerUrl = OpenppAuthManager.SCHEME + "://" + AUTH_SERVER;
+        assertEquals(authServerUrl + OpenppEndpoints.ACCESS_TOKEN_PATH + "?" + OpenppEndpoints.GRANT_TYPE_PARAM,
+                mEndpoints.getAccessTokenUrlWithGrantType());
+        assertEquals(authServerUrl + OpenppEndpoints.AUTHORIZE_PATH + "?response_type=code&client_id=",
+                mEndpoints.getAuthorizeUrlPrefix());
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.auth;
+
+import net.openpp.android.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the queueing of the requests throttled by the rate limiter.
+ *
+ * @author shiroko@webware.co.jp
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OpenppRateLimiterTest {
+    private static final OpenppRateLimiter.EndpointClass ENDPOINT = OpenppRateLimiter.EndpointClass.USER;
+
+    @Test
+    public void requestIsThrottledOnceHoweverManyTimesItWaits() throws Exception {
+        OpenppRateLimiter limiter = new OpenppRateLimiter();
+        limiter.setLimit(ENDPOINT, 1, 100);
+        limiter.setMaxQueueWait(60000);
+        limiter.acquire(ENDPOINT);
+
+        // The requests take the refilled tokens one by one, so all but the first wait more than once.
+        int threads = 4;
+        List<Future<Void>> futures = acquireConcurrently(limiter, threads);
+        for (Future<Void> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        assertEquals(threads, limiter.getThrottledCount(ENDPOINT));
+        assertEquals(0, limiter.getRejectedCount(ENDPOINT));
+    }
+
+    @Test
+    public void requestIsRejectedWhenItsTotalWaitExceedsTheLimit() throws Exception {
+        OpenppRateLimiter limiter = new OpenppRateLimiter();
+        limiter.setLimit(ENDPOINT, 1, 300);
+        // Longer than a single wait for the next token, but shorter than two.
+        limiter.setMaxQueueWait(450);
+        limiter.acquire(ENDPOINT);
+
+        List<Future<Void>> futures = acquireConcurrently(limiter, 2);
+        int rejected = 0;
+        for (Future<Void> future : futures) {
+            try {
+                future.get(30, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+                rejected++;
+            }
+        }
+        assertEquals(1, rejected);
+        assertEquals(1, limiter.getRejectedCount(ENDPOINT));
+        assertEquals(2, limiter.getThrottledCount(ENDPOINT));
+    }
+
+    @Test
+    public void requestIsRejectedWithoutWaitingWhenNotQueueing() throws Exception {
+        OpenppRateLimiter limiter = new OpenppRateLimiter();
+        limiter.setLimit(ENDPOINT, 1, 60000);
+        limiter.setQueueing(false);
+        limiter.acquire(ENDPOINT);
+        try {
+            limiter.acquire(ENDPOINT);
+            throw new AssertionError("The request must be rejected.");
+        } catch (IOException e) {
+            assertEquals(1, limiter.getRejectedCount(ENDPOINT));
+            assertEquals(0, limiter.getThrottledCount(ENDPOINT));
+        }
+    }
+
+    /**
+     * Starts acquiring the tokens on their own threads at the same time.
+     * @param limiter rate limiter
+     * @param threads number of the requests
+     * @return futures of the requests
+     */
+    private static List<Future<Void>> acquireConcurrently(final OpenppRateLimiter limiter, int threads) {
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    barrier.await();
+                    limiter.acquire(ENDPOINT);
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+        return futures;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.auth;
+
+import net.openpp.android.BuildConfig;
+import net.openpp.android.OpenppStandInServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the projection, the expiry, the eviction and the shared fetches of the user profile.
+ *
+ * @author shiroko@webware.co.jp
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OpenppUserProfileTest {
+    private static final int THREADS = 8;
+    private static final String PATH = OpenppStandInServer.USER_INFO_PATH;
+
+    private OpenppStandInServer mServer;
+    private OpenppUserProfile mProfile;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new OpenppStandInServer();
+        mServer.start();
+        OpenppAuthTestSupport.connect(RuntimeEnvironment.application, mServer, THREADS * 2);
+        mProfile = new OpenppUserProfile();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void onlyTheRequestedFieldIsFetchedAndCached() throws Exception {
+        mServer.setProfile("{\"uid\":\"u1\",\"nickname\":\"openpp\",\"age\":20,\"email\":null}");
+
+        assertEquals("openpp", mProfile.getString("nickname"));
+        assertEquals(1, mServer.getProjections().size());
+        assertEquals("nickname", mServer.getProjections().get(0));
+        // The server answered the whole profile; the fields not asked for are not kept.
+        assertNull(mProfile.getCached("age"));
+        assertNull(mProfile.getCached(OpenppUserProfile.FIELD_UID));
+
+        assertEquals(20, mProfile.getLong("age", -1));
+        assertEquals("age", mServer.getProjections().get(1));
+        assertNull(mProfile.getString("email"));
+        // A field the server has no value for is cached as missing.
+        assertNull(mProfile.getString("email"));
+        assertEquals(3, mServer.getRequestCount(PATH));
+    }
+
+    @Test
+    public void expiredFieldIsFetchedAgain() throws Exception {
+        mServer.setProfile("{\"uid\":\"u1\",\"nickname\":\"openpp\",\"points\":10}");
+        mProfile.setTimeToLive("points", 0);
+
+        assertEquals("openpp", mProfile.getString("nickname"));
+        assertEquals("openpp", mProfile.getString("nickname"));
+        assertEquals(1, mServer.getRequestCount(PATH));
+
+        assertEquals(10, mProfile.getLong("points", -1));
+        mServer.setProfile("{\"uid\":\"u1\",\"nickname\":\"changed\",\"points\":11}");
+        assertEquals(11, mProfile.getLong("points", -1));
+        assertEquals("openpp", mProfile.getString("nickname"));
+        assertEquals(3, mServer.getRequestCount(PATH));
+    }
+
+    @Test
+    public void leastRecentlyUsedFieldIsEvicted() throws Exception {
+        StringBuilder profile = new StringBuilder("{\"uid\":\"u1\"");
+        for (int i = 0; i <= OpenppUserProfile.CAPACITY; i++) {
+            profile.append(",\"field").append(i).append("\":\"value").append(i).append('"');
+        }
+        mServer.setProfile(profile.append('}').toString());
+
+        for (int i = 0; i < OpenppUserProfile.CAPACITY; i++) {
+            mProfile.getString("field" + i);
+        }
+        // Using the first field makes the second one the least recently used.
+        assertEquals("value0", mProfile.getString("field0"));
+        mProfile.getString("field" + OpenppUserProfile.CAPACITY);
+
+        assertEquals("value0", mProfile.getCached("field0"));
+        assertNull(mProfile.getCached("field1"));
+        assertEquals("value2", mProfile.getCached("field2"));
+        assertEquals(OpenppUserProfile.CAPACITY + 1, mServer.getRequestCount(PATH));
+    }
+
+    @Test
+    public void concurrentAccessesShareOneFetch() throws Exception {
+        mServer.setProfile("{\"uid\":\"u1\",\"nickname\":\"openpp\"}");
+        // Long enough for every thread to find the fetch in flight.
+        mServer.setLatency(500);
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        barrier.await();
+                        return mProfile.getString("nickname");
+                    }
+                }));
+            }
+            for (Future<String> future : futures) {
+                assertEquals("openpp", future.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, mServer.getRequestCount(PATH));
+    }
+
+    @Test
+    public void clearDropsTheUidOfThePreviousOwner() throws Exception {
+        mServer.setProfile("{\"uid\":\"u1\",\"nickname\":\"first\"}");
+        assertEquals("u1", mProfile.getUid());
+        assertEquals("first", mProfile.getString("nickname"));
+
+        mServer.setProfile("{\"uid\":\"u2\",\"nickname\":\"second\"}");
+        mProfile.clear();
+
+        assertNull(mProfile.getCached(OpenppUserProfile.FIELD_UID));
+        assertNull(mProfile.getCached("nickname"));
+        assertEquals("u2", mProfile.getUid());
+        assertEquals("second", mProfile.getString("nickname"));
+    }
+}
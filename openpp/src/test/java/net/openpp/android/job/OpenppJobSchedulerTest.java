@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.job;
+
+import net.openpp.android.BuildConfig;
+import net.openpp.android.util.OpenppPreferenceStore;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the stored record of a job follows the job.
+ *
+ * @author shiroko@webware.co.jp
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OpenppJobSchedulerTest {
+    private static final int JOBS = 200;
+    private static final long LATER = 60 * 60 * 1000;
+
+    @Test
+    public void finishedJobIsNotStoredAgain() throws Exception {
+        OpenppJobScheduler scheduler = OpenppJobScheduler.getInstance();
+        final CountDownLatch finished = new CountDownLatch(JOBS);
+        OpenppJob job = new OpenppJob() {
+            @Override
+            public boolean run(Map<String, String> params) {
+                finished.countDown();
+                return true;
+            }
+        };
+        for (int i = 0; i < JOBS; i++) {
+            scheduler.register(RuntimeEnvironment.application, "finished-" + i, job);
+            // Without a delay the job may finish before schedule() returns.
+            scheduler.schedule("finished-" + i, Collections.singletonMap("index", String.valueOf(i)), 0);
+        }
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        drain(scheduler);
+
+        OpenppPreferenceStore prefs = getPreferenceStore();
+        for (int i = 0; i < JOBS; i++) {
+            assertNull("finished-" + i, prefs.getString("finished-" + i, null));
+        }
+    }
+
+    @Test
+    public void pendingJobIsStoredWithTheLatestParams() throws Exception {
+        OpenppJobScheduler scheduler = OpenppJobScheduler.getInstance();
+        scheduler.register(RuntimeEnvironment.application, "pending", new OpenppJob() {
+            @Override
+            public boolean run(Map<String, String> params) {
+                return true;
+            }
+        });
+        scheduler.schedule("pending", Collections.singletonMap("value", "old"), 0, LATER);
+        scheduler.schedule("pending", Collections.singletonMap("value", "new"), 0, LATER);
+
+        String json = getPreferenceStore().getString("pending", null);
+        JSONObject params = new JSONObject(json).getJSONObject("params");
+        assertEquals("new", params.getString("value"));
+    }
+
+    /**
+     * Waits until the jobs submitted so far have been run, as the scheduler runs one at a time.
+     * @param scheduler scheduler
+     */
+    private static void drain(OpenppJobScheduler scheduler) throws InterruptedException {
+        final CountDownLatch drained = new CountDownLatch(1);
+        scheduler.register(RuntimeEnvironment.application, "drain", new OpenppJob() {
+            @Override
+            public boolean run(Map<String, String> params) {
+                drained.countDown();
+                return true;
+            }
+        });
+        scheduler.schedule("drain", Collections.<String, String>emptyMap(), 0);
+        assertTrue(drained.await(10, TimeUnit.SECONDS));
+    }
+
+    private static OpenppPreferenceStore getPreferenceStore() {
+        return OpenppPreferenceStore.getInstance(RuntimeEnvironment.application, OpenppJobScheduler.PREFERENCE_NAME);
+    }
+}
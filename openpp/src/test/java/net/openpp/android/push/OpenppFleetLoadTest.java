@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.push;
+
+import android.content.Context;
+
+import net.openpp.android.BuildConfig;
+import net.openpp.android.OpenppLoadReport;
+import net.openpp.android.OpenppStandInServer;
+import net.openpp.android.auth.OpenppAuthManager;
+import net.openpp.android.auth.OpenppAuthTestSupport;
+import net.openpp.android.auth.OpenppRateLimiter;
+import net.openpp.android.config.OpenppRemoteConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.scribe.model.Response;
+import org.scribe.model.Verb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Load test harness, which wakes up a fleet of simulated devices at once against the stand-in backend.<p>
+ * Each simulated device fetches {@code /api/user/me} and posts {@code /api/push/device/android/register}
+ * through {@link OpenppAuthManager} and {@link OpenppPushManager}, like the SDK does on a wake-up.
+ * The backend injects latency, dropped connections and token expiry, and the report shows
+ * the requests per second of each endpoint, the retry amplification, the token refreshes per expiry
+ * and the latency percentiles of each flow. It is written to {@code build/reports/openpp/fleet-load.json}.<p>
+ * The SDK keeps its state in process wide singletons, so the simulated devices share one access token
+ * and one rate limiter; a refresh storm here means that concurrent requests of a process did not share
+ * their refresh. The load is set by the system properties:
+ * <pre>
+ * openpp.load.clients        simulated devices (32)
+ * openpp.load.wakeUps        wake-ups of each device (5)
+ * openpp.load.latency        milliseconds the backend takes for each request (20)
+ * openpp.load.errorRate      rate of the dropped connections (0.05)
+ * openpp.load.tokenExpiryRate rate of the requests which expire the access token (0.01)
+ * </pre>
+ *
+ * @author shiroko@webware.co.jp
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OpenppFleetLoadTest {
+    private static final int CLIENTS = Integer.getInteger("openpp.load.clients", 32);
+    private static final int WAKE_UPS = Integer.getInteger("openpp.load.wakeUps", 5);
+    private static final long LATENCY = Long.getLong("openpp.load.latency", 20);
+    private static final double ERROR_RATE = Double.parseDouble(System.getProperty("openpp.load.errorRate", "0.05"));
+    private static final double TOKEN_EXPIRY_RATE = Double.parseDouble(System.getProperty("openpp.load.tokenExpiryRate", "0.01"));
+    // Short backoff served as the SDK configuration, so that the retries do not dominate the run.
+    private static final int MAX_ATTEMPTS = 5;
+    private static final String CONFIG = "{\"max_attempts\":" + MAX_ATTEMPTS + ",\"backoff_milli_seconds\":500}";
+    private static final String FLOW_USER_INFO = "user_info";
+    private static final String FLOW_REGISTRATION = "registration";
+
+    private OpenppStandInServer mServer;
+    private final OpenppLoadReport mReport = new OpenppLoadReport("fleet-load");
+    // Failed operations by the flow and the reason.
+    private final ConcurrentHashMap<String, AtomicLong> mFailures = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = RuntimeEnvironment.application;
+        mServer = new OpenppStandInServer();
+        mServer.setConfig(CONFIG);
+        mServer.start();
+        // The rate limiter stays out of the way; the backend sees what the devices send.
+        OpenppAuthTestSupport.connect(context, mServer, CLIENTS * WAKE_UPS * 4);
+        OpenppRemoteConfig.getInstance().refresh(context);
+
+        OpenppPushTestSupport.connect(context, mServer);
+
+        mServer.setLatency(LATENCY);
+        mServer.setErrorRate(ERROR_RATE);
+        mServer.setTokenExpiryRate(TOKEN_EXPIRY_RATE);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void fleetWakesUpAtOnce() throws Exception {
+        final String userInfoUrl = OpenppAuthManager.getInstance().getEndpoints().getUserInfoUrl() + "?fields=uid";
+        final CyclicBarrier barrier = new CyclicBarrier(CLIENTS);
+        List<Callable<Void>> devices = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            devices.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    // All devices wake up at the same moment, as after a push to the whole fleet.
+                    barrier.await();
+                    for (int j = 0; j < WAKE_UPS; j++) {
+                        fetchUserInfo(userInfoUrl);
+                        register();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (Callable<Void> device : devices) {
+                futures.add(executor.submit(device));
+            }
+            for (Future<Void> future : futures) {
+                future.get(10, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        writeReport(seconds);
+
+        // A token expiry is refreshed once, however many requests were rejected with it.
+        assertTrue("Refresh storm: " + mServer.getRefreshCount() + " refreshes for "
+                + mServer.getExpirationCount() + " expiries", mServer.getRefreshCount() <= mServer.getExpirationCount());
+        long operations = mReport.getCount(FLOW_USER_INFO) + mReport.getCount(FLOW_REGISTRATION);
+        assertEquals(2L * CLIENTS * WAKE_UPS, operations);
+        assertTrue("Retries beyond the attempts allowed", getResourceRequests() <= operations * MAX_ATTEMPTS * 2);
+    }
+
+    private void fetchUserInfo(String url) {
+        long start = System.nanoTime();
+        try {
+            Response response = OpenppAuthManager.getInstance().sendOAuthRequest(
+                    OpenppRateLimiter.EndpointClass.USER, Verb.GET, url, null);
+            if (null == response || !response.isSuccessful()) {
+                fail(FLOW_USER_INFO, null == response ? "no response" : "status " + response.getCode());
+            }
+        } catch (Exception e) {
+            fail(FLOW_USER_INFO, e);
+        } finally {
+            mReport.addLatency(FLOW_USER_INFO, System.nanoTime() - start);
+        }
+    }
+
+    private void register() {
+        long start = System.nanoTime();
+        try {
+            OpenppPushManager.getInstance().sendRegistrationRequest(new HashMap<String, String>());
+        } catch (Exception e) {
+            fail(FLOW_REGISTRATION, e);
+        } finally {
+            mReport.addLatency(FLOW_REGISTRATION, System.nanoTime() - start);
+        }
+    }
+
+    private void fail(String flow, Exception e) {
+        // The messages carry the status codes, which tell the failures apart.
+        fail(flow, e.getClass().getSimpleName() + ": " + e.getMessage());
+    }
+
+    private void fail(String flow, String reason) {
+        String key = "failures." + flow + "." + reason;
+        mFailures.putIfAbsent(key, new AtomicLong());
+        mFailures.get(key).incrementAndGet();
+    }
+
+    private long getResourceRequests() {
+        return mServer.getRequestCount(OpenppStandInServer.USER_INFO_PATH)
+                + mServer.getRequestCount(OpenppStandInServer.REGISTRATION_PATH);
+    }
+
+    private void writeReport(double seconds) throws Exception {
+        mReport.putParameter("clients", CLIENTS);
+        mReport.putParameter("wake_ups", WAKE_UPS);
+        mReport.putParameter("latency_ms", LATENCY);
+        mReport.putParameter("error_rate", ERROR_RATE);
+        mReport.putParameter("token_expiry_rate", TOKEN_EXPIRY_RATE);
+        mReport.putMetric("duration_s", seconds);
+
+        Map<String, String> endpoints = new LinkedHashMap<>();
+        endpoints.put("token", OpenppStandInServer.TOKEN_PATH);
+        endpoints.put("user_info", OpenppStandInServer.USER_INFO_PATH);
+        endpoints.put("registration", OpenppStandInServer.REGISTRATION_PATH);
+        long total = 0;
+        for (Map.Entry<String, String> endpoint : endpoints.entrySet()) {
+            long requests = mServer.getRequestCount(endpoint.getValue());
+            total += requests;
+            mReport.putMetric(endpoint.getKey() + ".requests", requests);
+            mReport.putMetric(endpoint.getKey() + ".dropped", mServer.getDroppedCount(endpoint.getValue()));
+            mReport.putMetric(endpoint.getKey() + ".rps", requests / seconds);
+        }
+        mReport.putMetric("total.rps", total / seconds);
+
+        long operations = mReport.getCount(FLOW_USER_INFO) + mReport.getCount(FLOW_REGISTRATION);
+        // Requests the backend received for each request the application made, with the retries and the re-sends after a refresh.
+        mReport.putMetric("retry_amplification", (double) getResourceRequests() / operations);
+        long failures = 0;
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(mFailures).entrySet()) {
+            failures += entry.getValue().get();
+            mReport.putMetric(entry.getKey(), entry.getValue().get());
+        }
+        mReport.putMetric("failed_operations", failures);
+        mReport.putMetric("token_expiries", mServer.getExpirationCount());
+        mReport.putMetric("token_refreshes", mServer.getRefreshCount());
+        mReport.putMetric("refreshes_per_expiry", 0 == mServer.getExpirationCount()
+                ? 0.0 : (double) mServer.getRefreshCount() / mServer.getExpirationCount());
+        mReport.write();
+    }
+}
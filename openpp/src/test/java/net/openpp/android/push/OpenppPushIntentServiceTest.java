@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.push;
+
+import android.app.Activity;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.Intent;
+
+import com.google.android.gms.gcm.GoogleCloudMessaging;
+
+import net.openpp.android.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowNotification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Tests that a received message is posted as a notification.
+ * How soon it is posted is measured by {@link OpenppPushLatencyTest}.
+ *
+ * @author shiroko@webware.co.jp
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OpenppPushIntentServiceTest {
+    private static final String EXTRA_MESSAGE_TYPE = "message_type";
+
+    private OpenppPushIntentService mService;
+
+    @Before
+    public void setUp() {
+        OpenppPushManager manager = OpenppPushManager.getInstance();
+        manager.setWakeupActivity(Activity.class);
+        manager.setIconResourceId(android.R.drawable.ic_dialog_info);
+        manager.setContentPrefetchEnabled(true);
+        mService = Robolectric.buildService(OpenppPushIntentService.class).attach().create().get();
+    }
+
+    @Test
+    public void messageIsPosted() {
+        Intent intent = createMessageIntent();
+        intent.putExtra(OpenppPushMessage.EXTRA_TITLE, "Title");
+        mService.onHandleIntent(intent);
+
+        Notification notification = getPostedNotification();
+        ShadowNotification shadowNotification = shadowOf(notification);
+        assertEquals("Title", shadowNotification.getContentTitle());
+        assertEquals("Hello", shadowNotification.getContentText());
+
+        // The wakeup activity gets the message without fetching it again.
+        Intent saved = shadowOf(notification.contentIntent).getSavedIntent();
+        assertEquals("Hello", OpenppPushMessage.fromIntent(saved).getMessage());
+    }
+
+    @Test
+    public void messageWithoutTitleIsPostedWithTheDefaultTitle() {
+        mService.onHandleIntent(createMessageIntent());
+
+        assertEquals(OpenppPushIntentService.DEFAULT_TITLE, shadowOf(getPostedNotification()).getContentTitle());
+    }
+
+    private static Intent createMessageIntent() {
+        Intent intent = new Intent();
+        intent.putExtra(EXTRA_MESSAGE_TYPE, GoogleCloudMessaging.MESSAGE_TYPE_MESSAGE);
+        intent.putExtra(OpenppPushMessage.EXTRA_MESSAGE, "Hello");
+        return intent;
+    }
+
+    private Notification getPostedNotification() {
+        NotificationManager notificationManager = (NotificationManager) mService.getSystemService(Context.NOTIFICATION_SERVICE);
+        Notification notification = shadowOf(notificationManager).getNotification(OpenppPushIntentService.NOTIFICATION_ID);
+        assertNotNull(notification);
+        return notification;
+    }
+}
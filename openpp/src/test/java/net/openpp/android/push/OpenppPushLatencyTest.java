@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.push;
+
+import android.app.Activity;
+import android.app.Application;
+import android.app.Notification;
+import android.content.BroadcastReceiver;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.PowerManager;
+
+import com.google.android.gms.gcm.GoogleCloudMessaging;
+
+import net.openpp.android.BuildConfig;
+import net.openpp.android.OpenppLoadReport;
+import net.openpp.android.OpenppStandInServer;
+import net.openpp.android.auth.OpenppAuthManager;
+import net.openpp.android.auth.OpenppAuthTestSupport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowBroadcastReceiver;
+import org.robolectric.shadows.ShadowNotificationManager;
+import org.robolectric.shadows.ShadowPowerManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Measures how soon a received message is notified, and how long it keeps the device awake.<p>
+ * Bursts of GCM intents are injected through {@link OpenppPushBroadcastReceiver}, which starts
+ * {@link OpenppPushIntentService} with a wake lock, and the service handles them one by one as its
+ * worker thread does. The report shows, for each burst size, the percentiles of the time from the
+ * injection until {@code NotificationManager.notify()} and of the time the wake lock is held.
+ * It is written to {@code build/reports/openpp/push-latency.json}. The burst sizes are set by
+ * the system property {@code openpp.push.bursts} (1,10,100,1000).
+ *
+ * @author shiroko@webware.co.jp
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21,
+        shadows = {OpenppPushLatencyTest.TimedNotificationManager.class, OpenppPushLatencyTest.TimedWakeLock.class,
+                OpenppPushLatencyTest.OrderedBroadcastReceiver.class})
+public class OpenppPushLatencyTest {
+    private static final String[] BURSTS = System.getProperty("openpp.push.bursts", "1,10,100,1000").split(",");
+    private static final String ACTION_RECEIVE = "com.google.android.c2dm.intent.RECEIVE";
+    private static final String EXTRA_MESSAGE_TYPE = "message_type";
+    // Far longer than the notification takes to post.
+    private static final long SLOW_SERVER_MILLI_SECONDS = 2000;
+
+    // Nanoseconds at each notify() call, and the content requests the server had received by then.
+    private static final List<Long> mNotifiedAt = Collections.synchronizedList(new ArrayList<Long>());
+    private static final List<Long> mContentRequestsAtNotify = Collections.synchronizedList(new ArrayList<Long>());
+    // Nanoseconds each wake lock was held for.
+    private static final List<Long> mWakeLockHeld = Collections.synchronizedList(new ArrayList<Long>());
+    private static volatile OpenppStandInServer mServer;
+
+    private final OpenppLoadReport mReport = new OpenppLoadReport("push-latency");
+    private OpenppPushIntentService mService;
+
+    @Before
+    public void setUp() throws Exception {
+        Application application = RuntimeEnvironment.application;
+        OpenppPushManager manager = OpenppPushManager.getInstance();
+        manager.setWakeupActivity(Activity.class);
+        manager.setIconResourceId(android.R.drawable.ic_dialog_info);
+        manager.setContentPrefetchEnabled(true);
+        application.registerReceiver(new OpenppPushBroadcastReceiver(), new IntentFilter(ACTION_RECEIVE));
+        mService = Robolectric.buildService(OpenppPushIntentService.class).attach().create().get();
+        mNotifiedAt.clear();
+        mContentRequestsAtNotify.clear();
+        mWakeLockHeld.clear();
+    }
+
+    @After
+    public void tearDown() {
+        if (null != mServer) {
+            mServer.stop();
+            mServer = null;
+        }
+    }
+
+    @Test
+    public void burstsAreNotifiedAndReleased() throws Exception {
+        int total = 0;
+        for (String burst : BURSTS) {
+            int size = Integer.parseInt(burst.trim());
+            runBurst(size);
+            total += size;
+            // Every message is notified, and every wake lock is released after its message.
+            assertEquals(total, mNotifiedAt.size());
+            assertEquals(total, mWakeLockHeld.size());
+        }
+        mReport.putParameter("bursts", System.getProperty("openpp.push.bursts", "1,10,100,1000"));
+        mReport.write();
+        assertFalse(shadowOf(RuntimeEnvironment.application).getLatestWakeLock().isHeld());
+    }
+
+    @Test
+    public void notificationIsPostedBeforeTheContentIsFetched() throws Exception {
+        mServer = new OpenppStandInServer();
+        mServer.start();
+        OpenppAuthTestSupport.connect(RuntimeEnvironment.application, mServer, 100);
+        // The content is fetched only once the profile of the user is known.
+        OpenppAuthManager authManager = OpenppAuthManager.getInstance();
+        authManager.getUserProfile().getUid();
+        mServer.setLatency(SLOW_SERVER_MILLI_SECONDS);
+        String url = authManager.getEndpoints().getResourceServerUrl() + OpenppStandInServer.CONTENT_PATH + "/" + System.nanoTime();
+
+        Intent intent = createMessageIntent(0);
+        intent.putExtra(OpenppPushMessage.EXTRA_PAYLOAD, OpenppPushMessageTest.encode(
+                "{\"message\":\"Hello\",\"data\":{\"content_url\":\"" + url + "\"}}"));
+        long start = System.nanoTime();
+        inject(intent);
+        handleStartedServices();
+        long handled = System.nanoTime() - start;
+
+        assertEquals(1, mNotifiedAt.size());
+        // The server had not been asked for the content when the notification was posted.
+        assertEquals(Long.valueOf(0), mContentRequestsAtNotify.get(0));
+        assertEquals(1, mServer.getRequestCount(OpenppStandInServer.CONTENT_PATH));
+        assertTrue(OpenppContentCache.getInstance(RuntimeEnvironment.application).contains(url));
+        long notified = mNotifiedAt.get(0) - start;
+        assertTrue("Notified in " + notified / 1000000 + " ms, handled in " + handled / 1000000 + " ms",
+                notified < handled - SLOW_SERVER_MILLI_SECONDS * 1000000);
+    }
+
+    /**
+     * Injects the burst of messages at once, then lets the service handle them.
+     * @param size number of the messages
+     */
+    private void runBurst(int size) {
+        int first = mNotifiedAt.size();
+        long[] injectedAt = new long[size];
+        for (int i = 0; i < size; i++) {
+            injectedAt[i] = System.nanoTime();
+            inject(createMessageIntent(i));
+        }
+        int wakeLocks = mWakeLockHeld.size();
+        long start = System.nanoTime();
+        handleStartedServices();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        String series = "burst_" + size;
+        for (int i = 0; i < size; i++) {
+            mReport.addLatency(series + ".notify", mNotifiedAt.get(first + i) - injectedAt[i]);
+        }
+        synchronized (mWakeLockHeld) {
+            for (Long held : mWakeLockHeld.subList(wakeLocks, mWakeLockHeld.size())) {
+                mReport.addLatency(series + ".wake_lock", held);
+            }
+        }
+        mReport.putMetric(series + ".messages_per_s", size / seconds);
+    }
+
+    /**
+     * Delivers the GCM intent as an ordered broadcast, as GCM does.
+     * @param intent GCM intent
+     */
+    private static void inject(Intent intent) {
+        RuntimeEnvironment.application.sendOrderedBroadcast(intent, null);
+    }
+
+    /**
+     * Handles the intents the receiver has started the service with, in order, as its worker thread does.
+     */
+    private void handleStartedServices() {
+        ShadowApplication application = shadowOf(RuntimeEnvironment.application);
+        Intent started;
+        while (null != (started = application.getNextStartedService())) {
+            mService.onHandleIntent(started);
+        }
+    }
+
+    private static Intent createMessageIntent(int index) {
+        Intent intent = new Intent(ACTION_RECEIVE);
+        intent.putExtra(EXTRA_MESSAGE_TYPE, GoogleCloudMessaging.MESSAGE_TYPE_MESSAGE);
+        intent.putExtra(OpenppPushMessage.EXTRA_MESSAGE, "Message " + index);
+        return intent;
+    }
+
+    /**
+     * Lets the receiver set the result, which the framework allows only during an ordered broadcast.
+     */
+    @Implements(BroadcastReceiver.class)
+    public static class OrderedBroadcastReceiver extends ShadowBroadcastReceiver {
+
+        @Implementation
+        public void setResultCode(int code) {
+            assertEquals(Activity.RESULT_OK, code);
+        }
+    }
+
+    /**
+     * Records when each notification is posted.
+     */
+    @Implements(android.app.NotificationManager.class)
+    public static class TimedNotificationManager extends ShadowNotificationManager {
+
+        @Override
+        @Implementation
+        public void notify(String tag, int id, Notification notification) {
+            mNotifiedAt.add(System.nanoTime());
+            OpenppStandInServer server = mServer;
+            mContentRequestsAtNotify.add(null == server ? 0 : server.getRequestCount(OpenppStandInServer.CONTENT_PATH));
+            super.notify(tag, id, notification);
+        }
+    }
+
+    /**
+     * Records how long each wake lock is held.
+     */
+    @Implements(PowerManager.WakeLock.class)
+    public static class TimedWakeLock extends ShadowPowerManager.ShadowWakeLock {
+        private long mAcquiredAt;
+
+        @Override
+        @Implementation
+        public synchronized void acquire(long timeout) {
+            mAcquiredAt = System.nanoTime();
+            super.acquire(timeout);
+        }
+
+        @Override
+        @Implementation
+        public synchronized void release() {
+            mWakeLockHeld.add(System.nanoTime() - mAcquiredAt);
+            super.release();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.push;
+
+import android.content.Context;
+
+import net.openpp.android.BuildConfig;
+import net.openpp.android.OpenppStandInServer;
+import net.openpp.android.auth.OpenppAuthTestSupport;
+import net.openpp.android.util.OpenppPreferenceStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the registration sent together with the attribute changes to the batch endpoint of the stand-in backend.
+ *
+ * @author shiroko@webware.co.jp
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OpenppPushManagerBatchTest {
+    // IDs of the operations, as the push manager adds them.
+    private static final String OPERATION_REGISTRATION = "registration";
+    private static final String OPERATION_ATTRIBUTES = "attributes";
+    // Key of the attribute upload job and the name of the store the scheduler keeps it in.
+    private static final String JOB_ATTRIBUTES = "push.attributes";
+    private static final String JOB_PREFERENCE_NAME = "openpp_jobs";
+
+    private OpenppStandInServer mServer;
+    private String mPlan;
+    // Attributes are changed off the UI thread, where they take effect at once.
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = RuntimeEnvironment.application;
+        mServer = new OpenppStandInServer();
+        mServer.start();
+        OpenppAuthTestSupport.connect(context, mServer, 100);
+        OpenppPushTestSupport.connect(context, mServer);
+        OpenppPushManager.getInstance().setBatchEnabled(true);
+        // A new value each time, as the attributes outlive the test in the singleton.
+        mPlan = "gold-" + System.nanoTime();
+        setAttribute("plan", mPlan);
+        // The change has scheduled its own upload; forget it to see whether the batch schedules another.
+        getJobStore().remove(JOB_ATTRIBUTES);
+    }
+
+    @After
+    public void tearDown() {
+        OpenppPushManager.getInstance().setBatchEnabled(false);
+        mExecutor.shutdownNow();
+        mServer.stop();
+    }
+
+    @Test
+    public void allOperationsSucceed() throws Exception {
+        register();
+
+        assertEquals(1, mServer.getRequestCount(OpenppStandInServer.BATCH_PATH));
+        assertEquals(0, mServer.getRequestCount(OpenppStandInServer.REGISTRATION_PATH));
+        assertEquals("registration-id", getLastParams(OPERATION_REGISTRATION).get("registration_id"));
+        assertEquals(mPlan, getLastParams(OPERATION_ATTRIBUTES).get("attributes[plan]"));
+        assertChangesSent();
+    }
+
+    @Test
+    public void failedAttributeOperationRestoresTheChanges() throws Exception {
+        mServer.setBatchStatus(OPERATION_ATTRIBUTES, 500);
+        // The registration has succeeded, so it is not retried.
+        register();
+
+        assertChangesRestored();
+    }
+
+    @Test
+    public void failedRegistrationOperationIsRetried() throws Exception {
+        mServer.setBatchStatus(OPERATION_REGISTRATION, 500);
+        try {
+            register();
+            fail("The failed registration must be retried.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("500"));
+        }
+        // The attributes have been applied on their own.
+        assertChangesSent();
+    }
+
+    @Test
+    public void missingResultIsUnanswered() throws Exception {
+        mServer.setBatchStatus(OPERATION_REGISTRATION, OpenppStandInServer.BATCH_NO_RESULT);
+        mServer.setBatchStatus(OPERATION_ATTRIBUTES, OpenppStandInServer.BATCH_NO_RESULT);
+        try {
+            register();
+            fail("The unanswered registration must be retried.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith(": 0"));
+        }
+        assertChangesRestored();
+    }
+
+    @Test
+    public void malformedResponseLeavesEveryOperationUnanswered() throws Exception {
+        mServer.setBatchResponse("{\"results\": [");
+        try {
+            register();
+            fail("The unanswered registration must be retried.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith(": 0"));
+        }
+        assertChangesRestored();
+    }
+
+    /**
+     * Asserts that the changes are gone, so that the next registration is sent alone.
+     */
+    private void assertChangesSent() throws Exception {
+        assertNull(getJobStore().getString(JOB_ATTRIBUTES, null));
+        long batches = mServer.getRequestCount(OpenppStandInServer.BATCH_PATH);
+        register();
+        assertEquals(batches, mServer.getRequestCount(OpenppStandInServer.BATCH_PATH));
+        assertEquals(1, mServer.getRequestCount(OpenppStandInServer.REGISTRATION_PATH));
+    }
+
+    /**
+     * Asserts that the changes are kept for their own upload, and go with the next registration too.
+     */
+    private void assertChangesRestored() throws Exception {
+        assertNotNull(getJobStore().getString(JOB_ATTRIBUTES, null));
+        mServer.setBatchStatus(OPERATION_REGISTRATION, 200);
+        mServer.setBatchStatus(OPERATION_ATTRIBUTES, 200);
+        mServer.setBatchResponse(null);
+        register();
+        assertEquals(2, mServer.getRequestCount(OpenppStandInServer.BATCH_PATH));
+        assertEquals(mPlan, getLastParams(OPERATION_ATTRIBUTES).get("attributes[plan]"));
+    }
+
+    private void setAttribute(final String key, final String value) throws Exception {
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                OpenppPushManager.getInstance().setAttribute(RuntimeEnvironment.application, key, value);
+            }
+        }).get();
+    }
+
+    private void register() throws IOException {
+        OpenppPushManager.getInstance().sendRegistrationRequest(new HashMap<String, String>());
+    }
+
+    private Map<String, String> getLastParams(String id) throws IOException {
+        List<Map<String, String>> params = mServer.getBatchParams(id);
+        return params.get(params.size() - 1);
+    }
+
+    private static OpenppPreferenceStore getJobStore() {
+        return OpenppPreferenceStore.getInstance(RuntimeEnvironment.application, JOB_PREFERENCE_NAME);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.push;
+
+import android.content.Context;
+
+import net.openpp.android.BuildConfig;
+import net.openpp.android.OpenppStandInServer;
+import net.openpp.android.auth.OpenppAuthTestSupport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that the registration carries the topic subscriptions to the stand-in backend.
+ *
+ * @author shiroko@webware.co.jp
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OpenppPushManagerTopicsTest {
+    private OpenppStandInServer mServer;
+    // Subscriptions are changed off the UI thread, where they take effect at once.
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = RuntimeEnvironment.application;
+        mServer = new OpenppStandInServer();
+        mServer.start();
+        OpenppAuthTestSupport.connect(context, mServer, 100);
+
+        OpenppPushTestSupport.connect(context, mServer);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        mServer.stop();
+    }
+
+    @Test
+    public void unsubscribingFromTheLastTopicClearsTheListOnTheBackend() throws Exception {
+        subscribe("news", true);
+        assertEquals("news", register().get(OpenppPushManager.PARAM_TOPICS));
+
+        subscribe("news", false);
+        // An omitted list would be kept by the backend; the empty one clears it.
+        assertEquals("", register().get(OpenppPushManager.PARAM_TOPICS));
+        // Also on the registrations after the one the change has triggered.
+        assertEquals("", register().get(OpenppPushManager.PARAM_TOPICS));
+    }
+
+    private void subscribe(final String topic, final boolean subscribe) throws Exception {
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Context context = RuntimeEnvironment.application;
+                if (subscribe) {
+                    OpenppPushManager.getInstance().subscribe(context, topic);
+                } else {
+                    OpenppPushManager.getInstance().unsubscribe(context, topic);
+                }
+            }
+        }).get();
+    }
+
+    /**
+     * Sends the registration and gets the parameters the backend has received.
+     * @return parameters of the registration
+     */
+    private Map<String, String> register() throws Exception {
+        OpenppPushManager.getInstance().sendRegistrationRequest(new HashMap<String, String>());
+        List<String> bodies = mServer.getBodies(OpenppStandInServer.REGISTRATION_PATH);
+        return OpenppStandInServer.parseForm(bodies.get(bodies.size() - 1));
+    }
+}
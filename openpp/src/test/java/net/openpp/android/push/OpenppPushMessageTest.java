@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.push;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.Base64;
+
+import net.openpp.android.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trip tests of the push message decoding.
+ *
+ * @author shiroko@webware.co.jp
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OpenppPushMessageTest {
+
+    @Test
+    public void payloadIsDecoded() throws IOException {
+        Bundle extras = new Bundle();
+        extras.putString(OpenppPushMessage.EXTRA_TOPIC, "news");
+        extras.putString(OpenppPushMessage.EXTRA_PAYLOAD, encode(
+                "{\"title\":\"Title\",\"message\":\"Hello\",\"extra\":[1,2],"
+                + "\"data\":{\"content_url\":\"http://example.com/a\",\"count\":3,\"flag\":true,\"nested\":{}}}"));
+
+        OpenppPushMessage message = OpenppPushMessage.fromExtras(extras);
+
+        assertEquals("Title", message.getTitle());
+        assertEquals("Hello", message.getMessage());
+        assertEquals("news", message.getTopic());
+        assertEquals("http://example.com/a", message.getContentUrl());
+        assertEquals("3", message.getData().get("count"));
+        assertEquals("true", message.getData().get("flag"));
+        assertEquals(3, message.getData().size());
+    }
+
+    @Test
+    public void flatExtrasAreUsedWithoutPayload() {
+        Bundle extras = new Bundle();
+        extras.putString(OpenppPushMessage.EXTRA_TITLE, "Title");
+        extras.putString(OpenppPushMessage.EXTRA_MESSAGE, "Hello");
+
+        OpenppPushMessage message = OpenppPushMessage.fromExtras(extras);
+
+        assertEquals("Title", message.getTitle());
+        assertEquals("Hello", message.getMessage());
+        assertNull(message.getTopic());
+        assertTrue(message.getData().isEmpty());
+    }
+
+    @Test
+    public void flatExtrasAreUsedIfThePayloadIsBroken() {
+        Bundle extras = new Bundle();
+        extras.putString(OpenppPushMessage.EXTRA_MESSAGE, "Hello");
+        extras.putString(OpenppPushMessage.EXTRA_PAYLOAD, "bm90IGRlZmxhdGVk");
+
+        OpenppPushMessage message = OpenppPushMessage.fromExtras(extras);
+
+        assertEquals("Hello", message.getMessage());
+        assertNull(message.getContentUrl());
+    }
+
+    @Test
+    public void messageSurvivesTheWakeupIntent() throws IOException {
+        Bundle extras = new Bundle();
+        extras.putString(OpenppPushMessage.EXTRA_TOPIC, "news");
+        extras.putString(OpenppPushMessage.EXTRA_PAYLOAD, encode(
+                "{\"title\":\"Title\",\"message\":\"Hello\",\"data\":{\"content_url\":\"http://example.com/a\"}}"));
+        OpenppPushMessage sent = OpenppPushMessage.fromExtras(extras);
+
+        Intent intent = new Intent();
+        sent.writeTo(intent);
+        OpenppPushMessage received = OpenppPushMessage.fromIntent(intent);
+
+        assertEquals(sent.getTitle(), received.getTitle());
+        assertEquals(sent.getMessage(), received.getMessage());
+        assertEquals(sent.getTopic(), received.getTopic());
+        assertEquals(sent.getData(), received.getData());
+    }
+
+    @Test
+    public void intentWithoutMessageGivesNull() {
+        assertNull(OpenppPushMessage.fromIntent(new Intent()));
+    }
+
+    /**
+     * Encodes the JSON as the server sends the compact payload.
+     * @param json JSON
+     * @return base64 of zlib-deflated JSON
+     */
+    static String encode(String json) throws IOException {
+        return Base64.encodeToString(deflate(json), Base64.DEFAULT);
+    }
+
+    /**
+     * Deflates the JSON with zlib.
+     * @param json JSON
+     * @return deflated bytes
+     */
+    static byte[] deflate(String json) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+        try {
+            out.write(json.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.push;
+
+import android.content.Context;
+
+import net.openpp.android.OpenppStandInServer;
+import net.openpp.android.job.OpenppJob;
+import net.openpp.android.job.OpenppJobScheduler;
+import net.openpp.android.util.OpenppPreferenceStore;
+import net.openpp.android.util.OpenppSharedState;
+
+import java.util.Map;
+
+/**
+ * Sets up the registration state of the push manager for the tests.
+ *
+ * @author shiroko@webware.co.jp
+ */
+final class OpenppPushTestSupport {
+    // Key of the advertising id, as stored by the push manager.
+    private static final String PROPERTY_ADV_ID = "advertisingId";
+    private static final String JOB_CONTEXT = "test.context";
+
+    private OpenppPushTestSupport() {
+    }
+
+    /**
+     * Points the push manager at the stand-in server, as if the device had been registered to GCM
+     * and had its advertising id. The authorization must have been set up with the same server.
+     * @param context context
+     * @param server stand-in server
+     * @throws Exception if the state cannot be stored
+     */
+    static void connect(Context context, OpenppStandInServer server) throws Exception {
+        OpenppPushManager pushManager = OpenppPushManager.getInstance();
+        pushManager.attach(context);
+        pushManager.setRegistrationServerName(server.getServerName());
+        int versionCode = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+        OpenppSharedState.getInstance(context).put(OpenppSharedState.RECORD_REGISTRATION,
+                "{\"registrationId\":\"registration-id\",\"appVersion\":" + versionCode + "}");
+        OpenppPreferenceStore.getInstance(context, OpenppPushManager.PREFERENCE_NAME).putString(PROPERTY_ADV_ID, "advertising-id");
+        // The jobs the push manager schedules are left without their handlers, so that the tests send by themselves.
+        OpenppJobScheduler.getInstance().register(context, JOB_CONTEXT, new OpenppJob() {
+            @Override
+            public boolean run(Map<String, String> params) {
+                return true;
+            }
+        });
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Deterministic tests of the retry policy.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppBackoffTest {
+
+    @Test
+    public void canRetryUntilTheLastAttempt() {
+        OpenppBackoff backoff = new OpenppBackoff(3, 1000);
+        assertTrue(backoff.canRetry(1));
+        assertTrue(backoff.canRetry(2));
+        assertFalse(backoff.canRetry(3));
+        assertFalse(backoff.canRetry(4));
+    }
+
+    @Test
+    public void singleAttemptIsNeverRetried() {
+        assertFalse(new OpenppBackoff(1, 1000).canRetry(1));
+    }
+
+    @Test
+    public void delayStartsAtHalfOfTheBackoff() {
+        OpenppBackoff backoff = new OpenppBackoff(5, 1000, new FixedRandom(0.0));
+        assertEquals(500, backoff.getDelay(1));
+        assertEquals(1000, backoff.getDelay(2));
+        assertEquals(2000, backoff.getDelay(3));
+        assertEquals(4000, backoff.getDelay(4));
+    }
+
+    @Test
+    public void delayIsRandomizedWithinTheBackoff() {
+        OpenppBackoff backoff = new OpenppBackoff(5, 1000, new FixedRandom(0.5));
+        assertEquals(750, backoff.getDelay(1));
+        assertEquals(1500, backoff.getDelay(2));
+        assertEquals(3000, backoff.getDelay(3));
+    }
+
+    @Test
+    public void delayStaysWithinTheBoundsForAnyDraw() {
+        OpenppBackoff backoff = new OpenppBackoff(5, 3000, new Random(42));
+        for (int i = 0; i < 10000; i++) {
+            int attempt = i % 5 + 1;
+            long max = 3000L << (attempt - 1);
+            long delay = backoff.getDelay(attempt);
+            assertTrue(delay >= max / 2);
+            assertTrue(delay <= max);
+        }
+    }
+
+    @Test
+    public void sameSeedGivesTheSameDelays() {
+        OpenppBackoff first = new OpenppBackoff(5, 3000, new Random(7));
+        OpenppBackoff second = new OpenppBackoff(5, 3000, new Random(7));
+        for (int attempt = 1; attempt <= 5; attempt++) {
+            assertEquals(first.getDelay(attempt), second.getDelay(attempt));
+        }
+    }
+
+    @Test
+    public void delayIsCappedAndNeverNegative() {
+        OpenppBackoff backoff = new OpenppBackoff(Integer.MAX_VALUE, Long.MAX_VALUE, new FixedRandom(0.0));
+        for (int attempt : new int[] {1, 2, 31, 64, 100, Integer.MAX_VALUE}) {
+            long delay = backoff.getDelay(attempt);
+            assertEquals(OpenppBackoff.MAX_DELAY_MILLI_SECONDS / 2, delay);
+        }
+        assertEquals(0, new OpenppBackoff(5, -1, new FixedRandom(0.5)).getDelay(3));
+        assertEquals(500, new OpenppBackoff(5, 1000, new FixedRandom(0.0)).getDelay(0));
+    }
+
+    /**
+     * Random which always draws the same double.
+     */
+    private static final class FixedRandom extends Random {
+        private final double mValue;
+
+        FixedRandom(double value) {
+            mValue = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return mValue;
+        }
+    }
+}
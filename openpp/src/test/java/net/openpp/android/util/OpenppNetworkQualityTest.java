@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 webware,Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.openpp.android.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Deterministic tests of how the network quality adapts the retry policy.
+ *
+ * @author shiroko@webware.co.jp
+ */
+public class OpenppNetworkQualityTest {
+
+    @Test
+    public void policyIsKeptUntilMeasured() {
+        OpenppBackoff backoff = new OpenppBackoff(5, 1000);
+        assertSame(backoff, new OpenppNetworkQuality().adapt(backoff));
+    }
+
+    @Test
+    public void policyIsKeptOnAGoodNetwork() {
+        OpenppNetworkQuality quality = new OpenppNetworkQuality();
+        quality.recordRtt(100);
+        OpenppBackoff backoff = new OpenppBackoff(5, 1000);
+        assertSame(backoff, quality.adapt(backoff));
+    }
+
+    @Test
+    public void poorNetworkIsRetriedLessAndLater() {
+        OpenppBackoff adapted = poorNetwork().adapt(new OpenppBackoff(5, 1000));
+        assertEquals(3, adapted.getMaxAttempts());
+        assertEquals(2000, adapted.getInitialBackoff());
+    }
+
+    @Test
+    public void poorNetworkNeverRaisesTheAttempts() {
+        OpenppNetworkQuality quality = poorNetwork();
+        for (int maxAttempts = 0; maxAttempts <= 10; maxAttempts++) {
+            int adapted = quality.adapt(new OpenppBackoff(maxAttempts, 1000)).getMaxAttempts();
+            assertTrue("max attempts " + maxAttempts, adapted <= maxAttempts);
+            assertTrue("max attempts " + maxAttempts, adapted >= Math.min(1, maxAttempts));
+        }
+    }
+
+    @Test
+    public void singleAttemptStaysSingleOnAPoorNetwork() {
+        assertEquals(1, poorNetwork().adapt(new OpenppBackoff(1, 1000)).getMaxAttempts());
+        assertEquals(1, poorNetwork().adapt(new OpenppBackoff(2, 1000)).getMaxAttempts());
+    }
+
+    private static OpenppNetworkQuality poorNetwork() {
+        OpenppNetworkQuality quality = new OpenppNetworkQuality();
+        quality.recordRtt(3000);
+        assertEquals(OpenppNetworkQuality.Quality.POOR, quality.getQuality());
+        return quality;
+    }
+}